@@ -2,8 +2,10 @@ package in.rachitpednekar.cloudshareapi;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 @SpringBootApplication
+@EnableScheduling
 public class CloudshareapiApplication {
 
 	public static void main(String[] args) {
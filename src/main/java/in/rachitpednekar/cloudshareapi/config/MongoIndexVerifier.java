@@ -0,0 +1,157 @@
+package in.rachitpednekar.cloudshareapi.config;
+
+import in.rachitpednekar.cloudshareapi.document.FileMetadataDocument;
+import in.rachitpednekar.cloudshareapi.document.PaymentTransaction;
+import in.rachitpednekar.cloudshareapi.document.ProfileDocument;
+import in.rachitpednekar.cloudshareapi.document.UploadSessionDocument;
+import in.rachitpednekar.cloudshareapi.document.UserCredits;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.IndexDefinition;
+import org.springframework.data.mongodb.core.index.IndexField;
+import org.springframework.data.mongodb.core.index.IndexOperations;
+import org.springframework.data.mongodb.core.index.IndexResolver;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+import org.springframework.data.mongodb.core.mapping.MongoPersistentEntity;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Checks at startup that every index declared on a document exists, creating the ones that are
+ * missing, and then asks the query planner how the hot repository queries would run. A query that
+ * would scan its whole collection is reported, and fails startup if {@code fail-on-collscan} is set.
+ * <p>
+ * Off by default, since it queries the live database on boot; {@code RepositoryIndexTest} asserts
+ * the same query plans in the build. Turn it on to check a deployment's indexes.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class MongoIndexVerifier {
+
+    private final MongoTemplate mongoTemplate;
+    private final MongoMappingContext mappingContext;
+
+    @Value("${cloudshare.mongo.verify-indexes:false}")
+    private boolean enabled;
+
+    @Value("${cloudshare.mongo.fail-on-collscan:false}")
+    private boolean failOnCollscan;
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void verify() {
+        if (!enabled) {
+            return;
+        }
+        verifyDeclaredIndexes();
+
+        List<String> scans = new ArrayList<>();
+        for (Map.Entry<String, Document> query : hotQueries().entrySet()) {
+            if (collectionScan(query.getValue())) {
+                scans.add(query.getKey());
+            }
+        }
+        if (scans.isEmpty()) {
+            log.info("All hot queries are served by an index");
+        } else if (failOnCollscan) {
+            throw new IllegalStateException("Queries without a usable index: " + scans);
+        } else {
+            log.warn("Queries without a usable index: {}", scans);
+        }
+    }
+
+    private void verifyDeclaredIndexes() {
+        IndexResolver resolver = IndexResolver.create(mappingContext);
+        for (MongoPersistentEntity<?> entity : mappingContext.getPersistentEntities()) {
+            if (!entity.isAnnotationPresent(org.springframework.data.mongodb.core.mapping.Document.class)) {
+                continue;
+            }
+            IndexOperations indexOps = mongoTemplate.indexOps(entity.getType());
+            Set<String> existing = indexOps.getIndexInfo().stream()
+                    .map(info -> keysOf(info.getIndexFields()))
+                    .collect(Collectors.toSet());
+
+            for (IndexDefinition definition : resolver.resolveIndexFor(entity.getType())) {
+                String keys = definition.getIndexKeys().toJson();
+                if (existing.contains(keys)) {
+                    continue;
+                }
+                try {
+                    indexOps.ensureIndex(definition);
+                    log.warn("Created missing index {} on {}", keys, entity.getCollection());
+                } catch (RuntimeException e) {
+                    //typically duplicate values under a unique index, which need cleaning up by hand
+                    log.error("Could not create index {} on {}", keys, entity.getCollection(), e);
+                }
+            }
+        }
+    }
+
+    private static String keysOf(List<IndexField> fields) {
+        Document keys = new Document();
+        for (IndexField field : fields) {
+            keys.append(field.getKey(), field.getDirection() == Sort.Direction.DESC ? -1 : 1);
+        }
+        return keys.toJson();
+    }
+
+    /**
+     * The filters and sorts the repositories send on every request, as explain-able commands. Values
+     * are placeholders; the planner only needs the shape.
+     */
+    private Map<String, Document> hotQueries() {
+        String files = mongoTemplate.getCollectionName(FileMetadataDocument.class);
+        String payments = mongoTemplate.getCollectionName(PaymentTransaction.class);
+        Document byClerkId = new Document("clerkId", "");
+
+        Map<String, Document> queries = new LinkedHashMap<>();
+        queries.put("FileMetadataRepository.findByClerkId", find(files, byClerkId, null));
+        queries.put("FileMetadataRepository.countByClerkId", new Document("count", files).append("query", byClerkId));
+        queries.put("FileMetadataRepository.findByClerkIdAndSha256In",
+                find(files, new Document("clerkId", "").append("sha256", new Document("$in", List.of(""))), null));
+        queries.put("FileMetadataService.getFilesPage",
+                find(files, byClerkId, new Document("uploadedAt", -1).append("_id", -1)));
+        queries.put("FileSearchService.search",
+                find(files, new Document("clerkId", "").append("nameGrams", new Document("$all", List.of("abc", "bcd"))), null));
+        queries.put("PaymentTransactionRepository.findByClerkIdOrderByTransactionDateDesc",
+                find(payments, byClerkId, new Document("transactionDate", -1)));
+        queries.put("PaymentTransactionRepository.findByClerkIdAndStatusOrderByTransactionDateDesc",
+                find(payments, new Document("clerkId", "").append("status", ""), new Document("transactionDate", -1)));
+        queries.put("PaymentTransactionRepository.findByOrderId", find(payments, new Document("orderId", ""), null));
+        queries.put("UserCreditsRepository.findByClerkId",
+                find(mongoTemplate.getCollectionName(UserCredits.class), byClerkId, null));
+        queries.put("ProfileRepository.findByClerkId",
+                find(mongoTemplate.getCollectionName(ProfileDocument.class), byClerkId, null));
+        queries.put("UploadSessionRepository.findByExpiresAtBefore",
+                find(mongoTemplate.getCollectionName(UploadSessionDocument.class), new Document("expiresAt", new Document("$lt", new Date())), null));
+        return queries;
+    }
+
+    private static Document find(String collection, Document filter, Document sort) {
+        Document find = new Document("find", collection).append("filter", filter);
+        if (sort != null) {
+            find.append("sort", sort);
+        }
+        return find;
+    }
+
+    private boolean collectionScan(Document command) {
+        Document explain = mongoTemplate.getDb().runCommand(new Document("explain", command).append("verbosity", "queryPlanner"));
+        Document planner = explain.get("queryPlanner", Document.class);
+        Document winningPlan = planner != null ? planner.get("winningPlan", Document.class) : null;
+        return winningPlan != null && winningPlan.toJson().contains("\"COLLSCAN\"");
+    }
+}
@@ -0,0 +1,34 @@
+package in.rachitpednekar.cloudshareapi.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+@Component
+@ConfigurationProperties(prefix = "cloudshare.rate-limit")
+@Data
+public class RateLimitProperties {
+
+    private boolean enabled = true;
+    private Duration idleTimeout = Duration.ofMinutes(10);
+    //limits by plan in lower case (basic, premium, ultimate); callers without a plan get basic
+    private Map<String, PlanLimits> plans = new HashMap<>();
+
+    public PlanLimits limitsFor(String plan) {
+        PlanLimits limits = plan != null ? plans.get(plan.toLowerCase()) : null;
+        return limits != null ? limits : plans.getOrDefault("basic", new PlanLimits());
+    }
+
+    @Data
+    public static class PlanLimits {
+        private double requestsPerSecond = 10;
+        private int requestBurst = 20;
+        private DataSize bytesPerSecond = DataSize.ofMegabytes(5);
+        private DataSize byteBurst = DataSize.ofMegabytes(20);
+    }
+}
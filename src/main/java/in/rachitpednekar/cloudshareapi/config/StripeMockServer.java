@@ -0,0 +1,131 @@
+package in.rachitpednekar.cloudshareapi.config;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.stripe.Stripe;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Minimal Stripe API stand-in for offline integration and load tests. It answers the checkout
+ * session calls the application makes, honours idempotency keys, and can add latency or fail a
+ * share of the calls to exercise the timeouts and circuit breaker in
+ * {@link in.rachitpednekar.cloudshareapi.service.StripeGateway}. Enabling it points the Stripe
+ * client at this server for the whole application.
+ */
+@Component
+@ConditionalOnProperty(name = "stripe.mock.enabled", havingValue = "true")
+@RequiredArgsConstructor
+@Slf4j
+public class StripeMockServer {
+
+    private static final String SESSIONS_PATH = "/v1/checkout/sessions";
+
+    private final ObjectMapper objectMapper;
+
+    @Value("${stripe.mock.port:12111}")
+    private int port;
+
+    @Value("${stripe.mock.latency:PT0S}")
+    private Duration latency;
+
+    @Value("${stripe.mock.failure-rate:0}")
+    private double failureRate;
+
+    private final Map<String, String> sessions = new ConcurrentHashMap<>();
+    private final Map<String, String> idempotentResponses = new ConcurrentHashMap<>();
+    private HttpServer server;
+
+    @PostConstruct
+    void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        server.createContext(SESSIONS_PATH, this::handleSessions);
+        server.start();
+
+        String apiBase = "http://localhost:" + server.getAddress().getPort();
+        Stripe.overrideApiBase(apiBase);
+        log.info("Stripe mock server listening on {}", apiBase);
+    }
+
+    @PreDestroy
+    void stop() {
+        server.stop(0);
+    }
+
+    private void handleSessions(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!latency.isZero()) {
+                Thread.sleep(latency.toMillis());
+            }
+            if (failureRate > 0 && ThreadLocalRandom.current().nextDouble() < failureRate) {
+                respond(exchange, 500, "{\"error\":{\"type\":\"api_error\",\"message\":\"Simulated failure\"}}");
+                return;
+            }
+
+            String path = exchange.getRequestURI().getPath();
+            if ("POST".equals(exchange.getRequestMethod()) && path.equals(SESSIONS_PATH)) {
+                String idempotencyKey = exchange.getRequestHeaders().getFirst("Idempotency-Key");
+                String body = idempotencyKey != null
+                        ? idempotentResponses.computeIfAbsent(idempotencyKey, key -> createSession())
+                        : createSession();
+                respond(exchange, 200, body);
+                return;
+            }
+            if ("GET".equals(exchange.getRequestMethod()) && path.startsWith(SESSIONS_PATH + "/")) {
+                String body = sessions.get(path.substring(SESSIONS_PATH.length() + 1));
+                if (body != null) {
+                    respond(exchange, 200, body);
+                    return;
+                }
+            }
+            respond(exchange, 404, "{\"error\":{\"type\":\"invalid_request_error\",\"message\":\"No such resource\"}}");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private String createSession() {
+        String id = "cs_mock_" + UUID.randomUUID().toString().replace("-", "");
+        ObjectNode session = objectMapper.createObjectNode()
+                .put("id", id)
+                .put("object", "checkout.session")
+                .put("mode", "payment")
+                .put("status", "open")
+                .put("payment_status", "unpaid")
+                .put("url", "http://localhost:" + server.getAddress().getPort() + "/checkout/" + id)
+                .put("created", System.currentTimeMillis() / 1000);
+        String body = session.toString();
+        sessions.put(id, body);
+        return body;
+    }
+
+    private void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.getResponseHeaders().set("Request-Id", "req_mock_" + UUID.randomUUID());
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package in.rachitpednekar.cloudshareapi.controller;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import in.rachitpednekar.cloudshareapi.service.UserImportService;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+/**
+ * Operator endpoints, authenticated with the {@code X-Admin-Token} header instead of a Clerk
+ * session. They are disabled while {@code cloudshare.admin.token} is empty.
+ */
+@RestController
+@RequestMapping("/admin")
+@RequiredArgsConstructor
+public class AdminController {
+
+    private final UserImportService userImportService;
+    private final ObjectMapper objectMapper;
+
+    @Value("${cloudshare.admin.token:}")
+    private String adminToken;
+
+    /**
+     * Imports a Clerk user export from the request body and reports progress as one JSON line
+     * per batch while it runs.
+     */
+    @PostMapping("/users/import")
+    public void importUsers(@RequestHeader(value = "X-Admin-Token", required = false) String token,
+                            HttpServletRequest request, HttpServletResponse response) throws IOException {
+        checkToken(token);
+
+        response.setContentType("application/x-ndjson");
+        ServletOutputStream out = response.getOutputStream();
+        userImportService.importUsers(request.getInputStream(), progress -> {
+            try {
+                out.write(objectMapper.writeValueAsBytes(progress));
+                out.write('\n');
+                out.flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    private void checkToken(String token) {
+        if (adminToken.isEmpty()) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND);
+        }
+        if (token == null || !MessageDigest.isEqual(adminToken.getBytes(StandardCharsets.UTF_8), token.getBytes(StandardCharsets.UTF_8))) {
+            throw new ResponseStatusException(HttpStatus.FORBIDDEN, "Invalid admin token");
+        }
+    }
+}
@@ -2,25 +2,26 @@ package in.rachitpednekar.cloudshareapi.controller;
 
 import in.rachitpednekar.cloudshareapi.document.UserCredits;
 import in.rachitpednekar.cloudshareapi.dto.FileMetadataDTO;
+import in.rachitpednekar.cloudshareapi.dto.FileReferenceDTO;
+import in.rachitpednekar.cloudshareapi.service.FileDownloadService;
 import in.rachitpednekar.cloudshareapi.service.FileMetadataService;
+import in.rachitpednekar.cloudshareapi.service.JsonStreamWriter;
 import in.rachitpednekar.cloudshareapi.service.UserCreditService;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import lombok.RequiredArgsConstructor;
-import org.springframework.core.io.Resource;
-import org.springframework.core.io.UrlResource;
-import org.springframework.http.HttpHeaders;
-import org.springframework.http.MediaType;
+import org.springframework.format.annotation.DateTimeFormat;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.core.parameters.P;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
 
 import java.io.IOException;
-import java.net.MalformedURLException;
-import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.time.LocalDateTime;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.stream.Stream;
 
 @RestController
 @RequiredArgsConstructor
@@ -28,6 +29,8 @@ import java.util.Map;
 public class FileController {
     private final FileMetadataService fileMetadataService;
     private final UserCreditService userCreditService;
+    private final FileDownloadService fileDownloadService;
+    private final JsonStreamWriter jsonStreamWriter;
     @PostMapping("/upload")
     public ResponseEntity<?>uploadFiles(@RequestPart("files")MultipartFile files[])throws IOException {
         Map<String,Object> response=new HashMap<>();
@@ -38,10 +41,52 @@ public class FileController {
         return ResponseEntity.ok(response);
 
     }
+    @PostMapping("/upload/stream")
+    public ResponseEntity<?> uploadFilesStreaming(HttpServletRequest request) throws IOException {
+        Map<String,Object> response=new HashMap<>();
+        List<FileMetadataDTO> list=fileMetadataService.uploadFilesStreaming(request);
+        UserCredits finalCredits=userCreditService.getUserCredits();
+        response.put("files",list);
+        response.put("remainingCredits",finalCredits.getCredits());
+        return ResponseEntity.ok(response);
+    }
+    @PostMapping("/precheck")
+    public ResponseEntity<?> precheck(@RequestBody List<String> sha256s) {
+        Map<String,Object> response=new HashMap<>();
+        response.put("existing",fileMetadataService.findExistingHashes(sha256s));
+        return ResponseEntity.ok(response);
+    }
+    @PostMapping("/upload/by-hash")
+    public ResponseEntity<?> uploadByHash(@RequestBody List<FileReferenceDTO> references) throws IOException {
+        Map<String,Object> response=new HashMap<>();
+        List<FileMetadataDTO> list=fileMetadataService.uploadByHash(references);
+        UserCredits finalCredits=userCreditService.getUserCredits();
+        response.put("files",list);
+        response.put("remainingCredits",finalCredits.getCredits());
+        return ResponseEntity.ok(response);
+    }
     @GetMapping("/my")
-    public ResponseEntity<?> getFilesForCurrentUser() {
-        List<FileMetadataDTO> files = fileMetadataService.getFiles();
-        return ResponseEntity.ok(files);
+    public ResponseEntity<?> getFilesForCurrentUser(@RequestParam(required = false) Integer limit,
+                                                    @RequestParam(required = false) String cursor,
+                                                    @RequestParam(required = false) String type,
+                                                    @RequestParam(required = false) Boolean isPublic,
+                                                    @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime from,
+                                                    @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime to,
+                                                    HttpServletResponse response) throws IOException {
+        if (limit == null && cursor == null && type == null && isPublic == null && from == null && to == null) {
+            //unpaged callers still get the plain list, streamed from the cursor
+            try (Stream<FileMetadataDTO> files = fileMetadataService.streamFiles()) {
+                jsonStreamWriter.writeArray(response, files);
+            }
+            return null;//the body is already written
+        }
+        int pageSize = Math.min(Math.max(limit != null ? limit : 50, 1), 200);
+        return ResponseEntity.ok(fileMetadataService.getFilesPage(pageSize, cursor, type, isPublic, from, to));
+    }
+    @GetMapping("/search")
+    public ResponseEntity<?> searchFiles(@RequestParam String q, @RequestParam(required = false) Integer limit) {
+        int maxResults = Math.min(Math.max(limit != null ? limit : 20, 1), 100);
+        return ResponseEntity.ok(fileMetadataService.searchFiles(q, maxResults));
     }
     @GetMapping("/public/{id}")
     public ResponseEntity<?> getPublicFile(@PathVariable String id) {
@@ -49,21 +94,30 @@ public class FileController {
         return ResponseEntity.ok(file);
     }
     @GetMapping("/download/{id}")
-    public ResponseEntity<Resource> download(@PathVariable String id) throws IOException {
+    public void download(@PathVariable String id, HttpServletRequest request, HttpServletResponse response) throws IOException {
         FileMetadataDTO downloadbleFile = fileMetadataService.getDownloadableFile(id);
-        Path path = Paths.get(downloadbleFile.getFileLocation());
-        Resource resource = new UrlResource(path.toUri());
+        fileDownloadService.send(downloadbleFile, request, response);
+    }
 
-        return ResponseEntity.ok()
-                .contentType(MediaType.APPLICATION_OCTET_STREAM)
-                .header(HttpHeaders.CONTENT_DISPOSITION, "attachemnt; filename=\""+downloadbleFile.getName()+"\"")
-                .body(resource);
+    @GetMapping("/download/{id}/thumbnail")
+    public void downloadThumbnail(@PathVariable String id, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        FileMetadataDTO downloadbleFile = fileMetadataService.getDownloadableFile(id);
+        if (downloadbleFile.getThumbnailLocation() == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "Thumbnail not available");
+            return;
+        }
+        fileDownloadService.sendThumbnail(downloadbleFile, request, response);
     }
     @DeleteMapping("/{id}")
     public ResponseEntity<?> deleteFile(@PathVariable String id) {
         fileMetadataService.deleteFile(id);
         return ResponseEntity.noContent().build();
     }
+    @PatchMapping("/{id}")
+    public ResponseEntity<?> renameFile(@PathVariable String id, @RequestBody Map<String,String> body) {
+        FileMetadataDTO file = fileMetadataService.renameFile(id, body.get("name"));
+        return ResponseEntity.ok(file);
+    }
     @PatchMapping("/{id}/toggle-public")
     public ResponseEntity<?> togglePublic(@PathVariable String id) {
         FileMetadataDTO file = fileMetadataService.togglePublic(id);
@@ -33,6 +33,9 @@ public class PaymentController {
         if(response.getSuccess()){
             return ResponseEntity.ok(response);
         }
+        else if ("PENDING".equals(response.getStatus())) {
+            return ResponseEntity.accepted().body(response);
+        }
         else{
             return ResponseEntity.badRequest().body(response);
         }
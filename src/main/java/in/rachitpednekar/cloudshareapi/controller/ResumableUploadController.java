@@ -0,0 +1,48 @@
+package in.rachitpednekar.cloudshareapi.controller;
+
+import in.rachitpednekar.cloudshareapi.document.UserCredits;
+import in.rachitpednekar.cloudshareapi.dto.FileMetadataDTO;
+import in.rachitpednekar.cloudshareapi.dto.UploadSessionDTO;
+import in.rachitpednekar.cloudshareapi.service.ResumableUploadService;
+import in.rachitpednekar.cloudshareapi.service.UserCreditService;
+import jakarta.servlet.http.HttpServletRequest;
+import lombok.RequiredArgsConstructor;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+@RestController
+@RequiredArgsConstructor
+@RequestMapping("/files/uploads")
+public class ResumableUploadController {
+    private final ResumableUploadService resumableUploadService;
+    private final UserCreditService userCreditService;
+
+    @PostMapping
+    public ResponseEntity<?> createSession(@RequestBody UploadSessionDTO request) throws IOException {
+        UploadSessionDTO session = resumableUploadService.createSession(request);
+        return ResponseEntity.status(HttpStatus.CREATED).body(session);
+    }
+    @GetMapping("/{id}")
+    public ResponseEntity<?> getSession(@PathVariable String id) {
+        return ResponseEntity.ok(resumableUploadService.getSession(id));
+    }
+    @PutMapping("/{id}")
+    public ResponseEntity<?> writeChunk(@PathVariable String id, @RequestParam long offset, HttpServletRequest request) throws IOException {
+        UploadSessionDTO session = resumableUploadService.writeChunk(id, offset, request.getInputStream());
+        return ResponseEntity.ok(session);
+    }
+    @PostMapping("/{id}/complete")
+    public ResponseEntity<?> complete(@PathVariable String id) throws IOException {
+        Map<String,Object> response=new HashMap<>();
+        FileMetadataDTO file=resumableUploadService.complete(id);
+        UserCredits finalCredits=userCreditService.getUserCredits();
+        response.put("file",file);
+        response.put("remainingCredits",finalCredits.getCredits());
+        return ResponseEntity.ok(response);
+    }
+}
@@ -0,0 +1,35 @@
+package in.rachitpednekar.cloudshareapi.controller;
+
+import com.stripe.exception.SignatureVerificationException;
+import in.rachitpednekar.cloudshareapi.service.StripeWebhookService;
+import lombok.RequiredArgsConstructor;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.io.IOException;
+
+@RestController
+@RequestMapping("/webhooks")
+@RequiredArgsConstructor
+public class StripeWebhookController {
+
+    private final StripeWebhookService stripeWebhookService;
+
+    @PostMapping("/stripe")
+    public ResponseEntity<?> handleStripeWebhook(
+            @RequestHeader(value = "Stripe-Signature", required = false) String signature,
+            @RequestBody String payload
+    ) throws IOException {
+        try {
+            stripeWebhookService.ingest(payload, signature);
+            return ResponseEntity.ok("Webhook received");
+        } catch (SignatureVerificationException e) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("Signature verification failed");
+        }
+    }
+}
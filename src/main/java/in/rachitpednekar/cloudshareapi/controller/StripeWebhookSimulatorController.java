@@ -0,0 +1,67 @@
+package in.rachitpednekar.cloudshareapi.controller;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.stripe.exception.SignatureVerificationException;
+import in.rachitpednekar.cloudshareapi.service.StripeWebhookService;
+import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Local stand-in for Stripe: builds a checkout event, signs it the way Stripe does and feeds it
+ * through the real webhook path. Only available with the {@code local} profile.
+ */
+@Profile("local")
+@RestController
+@RequestMapping("/webhooks/stripe/simulate")
+@RequiredArgsConstructor
+public class StripeWebhookSimulatorController {
+
+    private final StripeWebhookService stripeWebhookService;
+    private final ObjectMapper objectMapper;
+
+    @Value("${stripe.webhook.secret}")
+    private String webhookSecret;
+
+    @PostMapping
+    public ResponseEntity<?> simulate(@RequestParam String sessionId,
+                                      @RequestParam(defaultValue = "checkout.session.completed") String type,
+                                      @RequestParam(defaultValue = "paid") String paymentStatus) throws IOException, GeneralSecurityException, SignatureVerificationException {
+        String eventId = "evt_local_" + UUID.randomUUID().toString().replace("-", "");
+
+        ObjectNode event = objectMapper.createObjectNode()
+                .put("id", eventId)
+                .put("object", "event")
+                .put("type", type)
+                .put("created", System.currentTimeMillis() / 1000);
+        event.putObject("data").putObject("object")
+                .put("id", sessionId)
+                .put("object", "checkout.session")
+                .put("payment_intent", "pi_local_" + sessionId)
+                .put("payment_status", paymentStatus);
+        String payload = objectMapper.writeValueAsString(event);
+
+        long timestamp = System.currentTimeMillis() / 1000;
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(webhookSecret.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+        String signature = HexFormat.of().formatHex(mac.doFinal((timestamp + "." + payload).getBytes(StandardCharsets.UTF_8)));
+
+        boolean queued = stripeWebhookService.ingest(payload, "t=" + timestamp + ",v1=" + signature);
+        return ResponseEntity.ok(Map.of("eventId", eventId, "queued", queued));
+    }
+}
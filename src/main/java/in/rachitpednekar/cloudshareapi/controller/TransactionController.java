@@ -3,14 +3,16 @@ package in.rachitpednekar.cloudshareapi.controller;
 import in.rachitpednekar.cloudshareapi.document.PaymentTransaction;
 import in.rachitpednekar.cloudshareapi.document.ProfileDocument;
 import in.rachitpednekar.cloudshareapi.repository.PaymentTransactionRepository;
+import in.rachitpednekar.cloudshareapi.service.JsonStreamWriter;
 import in.rachitpednekar.cloudshareapi.service.ProfileService;
+import jakarta.servlet.http.HttpServletResponse;
 import lombok.RequiredArgsConstructor;
-import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 
-import java.util.List;
+import java.io.IOException;
+import java.util.stream.Stream;
 
 @RestController
 @RequestMapping("/transactions")
@@ -19,11 +21,13 @@ public class TransactionController {
     private final PaymentTransactionRepository paymentTransactionRepository;
 
     private final ProfileService profileService;
+    private final JsonStreamWriter jsonStreamWriter;
     @GetMapping
-    public ResponseEntity<?> getUserTransactions() {
+    public void getUserTransactions(HttpServletResponse response) throws IOException {
         ProfileDocument currentProfile=profileService.getCurrentProfile();
         String clerkId=currentProfile.getClerkId();
-        List<PaymentTransaction> transactions=paymentTransactionRepository.findByClerkIdAndStatusOrderByTransactionDateDesc(clerkId,"SUCCESS");
-        return ResponseEntity.ok(transactions);
+        try (Stream<PaymentTransaction> transactions=paymentTransactionRepository.streamByClerkIdAndStatusOrderByTransactionDateDesc(clerkId,"SUCCESS")) {
+            jsonStreamWriter.writeArray(response, transactions);
+        }
     }
 }
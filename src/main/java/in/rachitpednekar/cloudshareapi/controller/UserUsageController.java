@@ -0,0 +1,35 @@
+package in.rachitpednekar.cloudshareapi.controller;
+
+import in.rachitpednekar.cloudshareapi.document.UserUsage;
+import in.rachitpednekar.cloudshareapi.dto.UserUsageDTO;
+import in.rachitpednekar.cloudshareapi.service.ProfileService;
+import in.rachitpednekar.cloudshareapi.service.UserUsageService;
+import lombok.RequiredArgsConstructor;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+@RestController
+@RequestMapping("/users")
+@RequiredArgsConstructor
+public class UserUsageController {
+
+    private final ProfileService profileService;
+    private final UserUsageService userUsageService;
+
+    @GetMapping("/usage")
+    public ResponseEntity<?> getUsage() {
+        UserUsage usage = userUsageService.getUsage(profileService.getCurrentProfile().getClerkId());
+        UserUsageDTO response = UserUsageDTO.builder()
+                .fileCount(usage.getFileCount())
+                .totalBytes(usage.getTotalBytes())
+                .publicCount(usage.getPublicCount())
+                .publicBytes(usage.getPublicBytes())
+                .filesByType(usage.getFilesByType())
+                .bytesByType(usage.getBytesByType())
+                .build();
+
+        return ResponseEntity.ok(response);
+    }
+}
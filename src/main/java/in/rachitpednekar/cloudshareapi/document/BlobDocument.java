@@ -0,0 +1,26 @@
+package in.rachitpednekar.cloudshareapi.document;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+
+@Document(collection = "blobs")
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+@Builder
+public class BlobDocument {
+    @Id
+    private String id;//sha-256 of the content
+    private Long size;
+    private Long storedSize;
+    private String contentEncoding;//gzip when the stored bytes are compressed
+    private Long refCount;
+    private Instant createdAt;
+    private Instant deletingAt;//set while the last reference removes the bytes, nothing may take a new reference then
+}
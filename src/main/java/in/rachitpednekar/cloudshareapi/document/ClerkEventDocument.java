@@ -0,0 +1,32 @@
+package in.rachitpednekar.cloudshareapi.document;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+
+@Document(collection = "clerk_events")
+@CompoundIndex(name = "status_updatedAt", def = "{'status': 1, 'updatedAt': 1}")
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+@Builder
+public class ClerkEventDocument {
+    @Id
+    private String id;//svix-id, so redeliveries are stored once
+    private String type;
+    private String clerkId;
+    private String data;
+    private Long eventTimestamp;
+    private String status;//PENDING,PROCESSING,DONE
+    private String claim;
+    @Indexed(expireAfter = "7d")
+    private Instant receivedAt;
+    private Instant updatedAt;
+}
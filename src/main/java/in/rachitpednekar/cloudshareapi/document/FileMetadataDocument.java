@@ -4,11 +4,18 @@ import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Data;
 import lombok.NoArgsConstructor;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.Indexed;
 import org.springframework.data.mongodb.core.mapping.Document;
 
 import java.time.LocalDateTime;
+import java.util.List;
 
 @Document
+@CompoundIndex(name = "clerkId_uploadedAt_id", def = "{'clerkId': 1, 'uploadedAt': -1, '_id': -1}")
+@CompoundIndex(name = "clerkId_sha256", def = "{'clerkId': 1, 'sha256': 1}")
+@CompoundIndex(name = "clerkId_nameLower", def = "{'clerkId': 1, 'nameLower': 1}")
+@CompoundIndex(name = "clerkId_nameGrams", def = "{'clerkId': 1, 'nameGrams': 1}")
 @AllArgsConstructor
 @NoArgsConstructor
 @Builder
@@ -18,9 +25,16 @@ public class FileMetadataDocument {
     private String name;
     private String type;
     private Long size;
+    private String sha256;
+    private String contentEncoding;
     private String clerkId;
     private Boolean isPublic;
+    @Indexed
     private String fileLocation;
+    private String thumbnailLocation;
     private LocalDateTime uploadedAt;
+    //search fields kept in step with name, see FileSearchService
+    private String nameLower;
+    private List<String> nameGrams;
 
 }
@@ -0,0 +1,23 @@
+package in.rachitpednekar.cloudshareapi.document;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+
+@Document(collection = "job_locks")
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+@Builder
+public class JobLockDocument {
+    @Id
+    private String id;//job name
+    private String owner;
+    private Instant lockedUntil;
+    private Instant completedAt;//set by one-off jobs once they have finished
+}
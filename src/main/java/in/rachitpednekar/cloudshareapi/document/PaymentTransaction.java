@@ -4,6 +4,8 @@ import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Data;
 import lombok.NoArgsConstructor;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.Indexed;
 import org.springframework.data.mongodb.core.mapping.Document;
 
 import java.time.LocalDateTime;
@@ -13,10 +15,13 @@ import java.time.LocalDateTime;
 @NoArgsConstructor
 @Builder
 @Document(collection = "payment_transactions")
+@CompoundIndex(name = "clerkId_status_transactionDate", def = "{'clerkId': 1, 'status': 1, 'transactionDate': -1}")
+@CompoundIndex(name = "clerkId_transactionDate", def = "{'clerkId': 1, 'transactionDate': -1}")
 
 public class PaymentTransaction {
     private String id;
     private String clerkId;
+    @Indexed(unique = true, sparse = true)
     private String orderId;
     private String paymentId;
     private String planId;
@@ -22,6 +22,8 @@ import java.time.Instant;
 public class ProfileDocument {
     @Id
     private String id;
+    //not unique yet: redelivered user.created webhooks left duplicate rows in existing data
+    @Indexed
     private String clerkId;
 
     @Indexed(unique=true)
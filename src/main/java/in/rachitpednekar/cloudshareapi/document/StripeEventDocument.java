@@ -0,0 +1,33 @@
+package in.rachitpednekar.cloudshareapi.document;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+
+@Document(collection = "stripe_events")
+@CompoundIndex(name = "status_updatedAt", def = "{'status': 1, 'updatedAt': 1}")
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+@Builder
+public class StripeEventDocument {
+    @Id
+    private String id;//Stripe event id, so redeliveries are stored once
+    private String type;
+    private String sessionId;
+    private String paymentIntentId;
+    private String paymentStatus;
+    private String status;//PENDING,PROCESSING,DONE,FAILED
+    private Integer attempts;
+    private String lastError;
+    @Indexed(expireAfter = "30d")
+    private Instant receivedAt;
+    private Instant updatedAt;
+}
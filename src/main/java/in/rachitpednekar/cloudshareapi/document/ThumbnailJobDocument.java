@@ -0,0 +1,28 @@
+package in.rachitpednekar.cloudshareapi.document;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+
+@Document(collection = "thumbnail_jobs")
+@CompoundIndex(name = "status_updatedAt", def = "{'status': 1, 'updatedAt': 1}")
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+@Builder
+public class ThumbnailJobDocument {
+    @Id
+    private String id;
+    private String fileId;
+    private String status;//PENDING,RUNNING,FAILED
+    private Integer attempts;
+    private String lastError;
+    private Instant createdAt;
+    private Instant updatedAt;
+}
@@ -0,0 +1,38 @@
+package in.rachitpednekar.cloudshareapi.document;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+
+@Document(collection = "upload_sessions")
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+@Builder
+public class UploadSessionDocument {
+    @Id
+    private String id;
+    private String clerkId;
+    private String name;
+    private String type;
+    private Long size;
+    private Long committedOffset;
+    private String status;//OPEN,FINALIZING,COMPLETED,FAILED
+    private Instant finalizingUntil;//lease of the node finalizing the upload, taken over once it lapses
+    private Boolean creditReserved;
+    //the committed blob, kept so a retried completion does not need the staging file again
+    private String blobSha256;
+    private Long blobSize;
+    private String blobContentEncoding;
+    private String stagingLocation;
+    private String fileId;
+    private Instant createdAt;
+    @Indexed
+    private Instant expiresAt;
+}
@@ -5,8 +5,11 @@ import lombok.Builder;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.Indexed;
 import org.springframework.data.mongodb.core.mapping.Document;
 
+import java.util.List;
+
 @Document(collection = "user_credits")
 @Data
 @AllArgsConstructor
@@ -15,8 +18,12 @@ import org.springframework.data.mongodb.core.mapping.Document;
 public class UserCredits {
     @Id
     private String id;
+    //not unique yet: redelivered user.created webhooks left duplicate rows in existing data
+    @Indexed
     private String clerkId;
     private Integer credits;
     private String plan;//BASIC,PREMIUM,ULTIMATE
+    //orders whose credits were added but not yet recorded on their payment transaction
+    private List<String> appliedOrderIds;
 
 }
@@ -0,0 +1,33 @@
+package in.rachitpednekar.cloudshareapi.document;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+import java.util.Map;
+
+@Document(collection = "user_usage")
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+@Builder
+public class UserUsage {
+    @Id
+    private String clerkId;
+    private Long fileCount;
+    private Long totalBytes;
+    private Long publicCount;
+    private Long publicBytes;
+    //keyed by the top-level content type (image, video, application, ...), other for anything unknown
+    private Map<String, Long> filesByType;
+    private Map<String, Long> bytesByType;
+    private Instant reconciledAt;
+    //false while the document only holds increments and was never computed from the files
+    private Boolean reconciled;
+    //the reconciliation run that found this document and has not rewritten it yet
+    private String pendingRun;
+}
@@ -17,8 +17,11 @@ public class FileMetadataDTO {
     private String name;
     private String type;
     private Long size;
+    private String sha256;
+    private String contentEncoding;
     private String clerkId;
     private Boolean isPublic;
     private String fileLocation;
+    private String thumbnailLocation;
     private LocalDateTime uploadedAt;
 }
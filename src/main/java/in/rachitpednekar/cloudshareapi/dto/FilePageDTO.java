@@ -0,0 +1,17 @@
+package in.rachitpednekar.cloudshareapi.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+@Builder
+public class FilePageDTO {
+    private List<FileMetadataDTO> files;
+    private String nextCursor;//null on the last page
+}
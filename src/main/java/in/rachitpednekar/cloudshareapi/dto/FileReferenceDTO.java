@@ -0,0 +1,16 @@
+package in.rachitpednekar.cloudshareapi.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+@Builder
+public class FileReferenceDTO {
+    private String sha256;
+    private String name;
+    private String type;
+}
@@ -16,6 +16,7 @@ public class PaymentDTO {
     private String currency;
     private Integer credits;
     private Boolean success;
+    private String status;
     private String message;
     private String orderId;
     private String sessionId;
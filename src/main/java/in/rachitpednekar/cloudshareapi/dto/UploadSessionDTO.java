@@ -0,0 +1,23 @@
+package in.rachitpednekar.cloudshareapi.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.Instant;
+
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+@Builder
+public class UploadSessionDTO {
+    private String id;
+    private String name;
+    private String type;
+    private Long size;
+    private Long committedOffset;
+    private String status;
+    private String fileId;
+    private Instant expiresAt;
+}
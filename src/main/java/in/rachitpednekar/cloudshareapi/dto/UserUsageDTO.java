@@ -0,0 +1,21 @@
+package in.rachitpednekar.cloudshareapi.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.Map;
+
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+@Builder
+public class UserUsageDTO {
+    private Long fileCount;
+    private Long totalBytes;
+    private Long publicCount;
+    private Long publicBytes;
+    private Map<String, Long> filesByType;
+    private Map<String, Long> bytesByType;
+}
@@ -1,13 +1,19 @@
 package in.rachitpednekar.cloudshareapi.repository;
 
 import in.rachitpednekar.cloudshareapi.document.FileMetadataDocument;
+import org.springframework.data.mongodb.repository.Meta;
 import org.springframework.data.mongodb.repository.MongoRepository;
+import java.util.Collection;
 import java.util.List;
+import java.util.stream.Stream;
 
 public interface FileMetadataRepository extends MongoRepository<FileMetadataDocument,String> {
 
     List<FileMetadataDocument>findByClerkId(String clerkId);
     Long countByClerkId(String clerkId);
+    List<FileMetadataDocument>findByClerkIdAndSha256In(String clerkId, Collection<String> sha256s);
+    @Meta(cursorBatchSize = 500)
+    Stream<FileMetadataDocument> streamByClerkId(String clerkId);
 
 
 }
@@ -1,11 +1,16 @@
 package in.rachitpednekar.cloudshareapi.repository;
 
 import in.rachitpednekar.cloudshareapi.document.PaymentTransaction;
+import org.springframework.data.mongodb.repository.Meta;
 import org.springframework.data.mongodb.repository.MongoRepository;
 import java.util.List;
+import java.util.stream.Stream;
 
 public interface PaymentTransactionRepository extends MongoRepository<PaymentTransaction, String> {
     List<PaymentTransaction>findByClerkId(String clerkId);
     List<PaymentTransaction>findByClerkIdOrderByTransactionDateDesc(String clerkId);
     List<PaymentTransaction>findByClerkIdAndStatusOrderByTransactionDateDesc(String clerkId, String status);
+    @Meta(cursorBatchSize = 500)
+    Stream<PaymentTransaction> streamByClerkIdAndStatusOrderByTransactionDateDesc(String clerkId, String status);
+    PaymentTransaction findByOrderId(String orderId);
 }
@@ -0,0 +1,11 @@
+package in.rachitpednekar.cloudshareapi.repository;
+
+import in.rachitpednekar.cloudshareapi.document.UploadSessionDocument;
+import org.springframework.data.mongodb.repository.MongoRepository;
+
+import java.time.Instant;
+import java.util.List;
+
+public interface UploadSessionRepository extends MongoRepository<UploadSessionDocument, String> {
+    List<UploadSessionDocument> findByExpiresAtBefore(Instant now);
+}
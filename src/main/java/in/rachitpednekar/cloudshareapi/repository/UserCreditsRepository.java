@@ -9,4 +9,6 @@ import java.util.Optional;
 public interface UserCreditsRepository extends MongoRepository<UserCredits,String> {
     Optional<UserCredits> findByClerkId(String clerkId);
 
+    boolean existsByClerkId(String clerkId);
+
 }
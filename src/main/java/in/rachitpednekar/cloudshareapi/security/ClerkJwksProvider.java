@@ -2,56 +2,143 @@ package in.rachitpednekar.cloudshareapi.security;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
 import java.math.BigInteger;
-import java.net.URL;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
 import java.security.KeyFactory;
 import java.security.PublicKey;
 import java.security.spec.RSAPublicKeySpec;
+import java.time.Duration;
 import java.util.Base64;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * Clerk's signing keys, refreshed in the background well before they could go stale. Requests
+ * only read an immutable snapshot of the keys. A token with an unknown {@code kid} triggers at most
+ * one fetch at a time, no more often than {@code clerk.jwks.min-refresh-interval}, and a kid that is
+ * still unknown after such a fetch is remembered for a while. If Clerk cannot be reached, the last keys
+ * that were fetched are kept.
+ */
 @Component
+@RequiredArgsConstructor
+@Slf4j
 public class ClerkJwksProvider {
 
+    private final ObjectMapper objectMapper;
+
     @Value("${clerk.jwks-url}")
     private String jwksUrl;
 
-    private final Map<String, PublicKey> keyCache = new HashMap<>();
-    private long lastFetchTime = 0;
-    private static final long CACHE_TTL = 3600000; //1 hour
+    @Value("${clerk.jwks.timeout:PT5S}")
+    private Duration timeout;
+
+    @Value("${clerk.jwks.min-refresh-interval:PT30S}")
+    private Duration minRefreshInterval;
+
+    @Value("${clerk.jwks.unknown-kid-ttl:PT5M}")
+    private Duration unknownKidTtl;
 
-    public PublicKey getPublicKey(String kid) throws Exception{
-        if (keyCache.containsKey(kid) && System.currentTimeMillis() - lastFetchTime < CACHE_TTL) {
-            return keyCache.get(kid);
+    private final ReentrantLock refreshLock = new ReentrantLock();
+    private volatile Map<String, PublicKey> keyCache = Map.of();
+    private volatile long lastFetchAttempt = 0;
+
+    private HttpClient httpClient;
+    private Cache<String, Boolean> unknownKids;
+
+    @PostConstruct
+    void init() {
+        httpClient = HttpClient.newBuilder().connectTimeout(timeout).build();
+        unknownKids = Caffeine.newBuilder().maximumSize(1000).expireAfterWrite(unknownKidTtl).build();
+    }
+
+    /**
+     * Returns the key for {@code kid}, or null if Clerk does not publish such a key.
+     */
+    public PublicKey getPublicKey(String kid) {
+        PublicKey key = keyCache.get(kid);
+        if (key != null || unknownKids.getIfPresent(kid) != null) {
+            return key;
         }
 
-        refreshKeys();
-        return keyCache.get(kid);
+        boolean fetched = false;
+        refreshLock.lock();
+        try {
+            key = keyCache.get(kid);
+            if (key == null && System.currentTimeMillis() - lastFetchAttempt >= minRefreshInterval.toMillis()) {
+                fetched = refreshQuietly();
+                key = keyCache.get(kid);
+            }
+        } finally {
+            refreshLock.unlock();
+        }
+
+        //only a fresh key set can say the kid does not exist; a skipped or failed fetch proves nothing
+        if (key == null && fetched) {
+            unknownKids.put(kid, Boolean.TRUE);
+        }
+        return key;
     }
 
-    private void refreshKeys() throws Exception{
-        ObjectMapper mapper = new ObjectMapper();
-        JsonNode jwks = mapper.readTree(new URL(jwksUrl));
+    @Scheduled(initialDelay = 0, fixedDelayString = "${clerk.jwks.refresh-interval:PT30M}")
+    public void refreshInBackground() {
+        refreshLock.lock();
+        try {
+            refreshQuietly();
+        } finally {
+            refreshLock.unlock();
+        }
+    }
 
-        JsonNode keys = jwks.get("keys");
-        for(JsonNode keyNode: keys) {
-            String kid = keyNode.get("kid").asText();
-            String kty = keyNode.get("kty").asText();
-            String alg = keyNode.get("alg").asText();
+    private boolean refreshQuietly() {
+        lastFetchAttempt = System.currentTimeMillis();
+        try {
+            keyCache = fetchKeys();
+            unknownKids.invalidateAll();
+            return true;
+        } catch (Exception e) {
+            log.warn("Could not refresh Clerk JWKS, keeping {} known keys", keyCache.size(), e);
+            return false;
+        }
+    }
 
-            if ("RSA".equals(kty) && "RS256".equals(alg)) {
-                String n = keyNode.get("n").asText();
-                String e = keyNode.get("e").asText();
+    private Map<String, PublicKey> fetchKeys() throws Exception {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(jwksUrl)).timeout(timeout).GET().build();
+        HttpResponse<byte[]> response = httpClient.send(request, HttpResponse.BodyHandlers.ofByteArray());
+        if (response.statusCode() != 200) {
+            throw new IllegalStateException("JWKS endpoint returned " + response.statusCode());
+        }
+
+        JsonNode jwks = objectMapper.readTree(response.body());
+        Map<String, PublicKey> keys = new HashMap<>();
+        for (JsonNode keyNode : jwks.path("keys")) {
+            String kid = keyNode.path("kid").asText();
+            String kty = keyNode.path("kty").asText();
+            String alg = keyNode.path("alg").asText("RS256");
 
-                PublicKey publicKey = createPublicKey(n, e);
-                keyCache.put(kid, publicKey);
+            if ("RSA".equals(kty) && "RS256".equals(alg)) {
+                PublicKey publicKey = createPublicKey(keyNode.path("n").asText(), keyNode.path("e").asText());
+                //keep the instance we already have so callers can tell the key did not change
+                PublicKey known = keyCache.get(kid);
+                keys.put(kid, publicKey.equals(known) ? known : publicKey);
             }
         }
-        lastFetchTime = System.currentTimeMillis();
+        if (keys.isEmpty()) {
+            throw new IllegalStateException("JWKS response contained no usable keys");
+        }
+        return Map.copyOf(keys);
     }
 
     private PublicKey createPublicKey(String modulus, String exponent) throws Exception {
@@ -66,4 +153,3 @@ public class ClerkJwksProvider {
         return factory.generatePublic(spec);
     }
 }
-
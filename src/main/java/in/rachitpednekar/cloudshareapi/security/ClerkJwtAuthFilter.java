@@ -2,13 +2,19 @@ package in.rachitpednekar.cloudshareapi.security;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
 import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.JwtParser;
 import io.jsonwebtoken.Jwts;
+import jakarta.annotation.PostConstruct;
 import jakarta.servlet.FilterChain;
 import jakarta.servlet.ServletException;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
 import org.springframework.security.core.authority.SimpleGrantedAuthority;
@@ -17,19 +23,43 @@ import org.springframework.stereotype.Component;
 import org.springframework.web.filter.OncePerRequestFilter;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.Base64;
 import java.util.Collections;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 @Component
 @RequiredArgsConstructor
+@Slf4j
 public class ClerkJwtAuthFilter extends OncePerRequestFilter {
 
     @Value("${clerk.issuer}")
     private String clerkIssuer;
 
-    private final ClerkJwksProvider jwksProvider;
+    @Value("${clerk.token-cache.max-entries:10000}")
+    private long tokenCacheSize;
 
+    private final ClerkJwksProvider jwksProvider;
+    private final ObjectMapper objectMapper;
+
+    //a token that verified once is trusted until it expires, keyed by its SHA-256 so raw tokens are not kept
+    private Cache<String, VerifiedToken> verifiedTokens;
+    private final Map<String, KeyedParser> parsers = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    void init() {
+        verifiedTokens = Caffeine.newBuilder()
+                .maximumSize(tokenCacheSize)
+                .expireAfter(Expiry.creating((String hash, VerifiedToken token) -> Duration.between(Instant.now(), token.expiresAt())))
+                .build();
+    }
 
     @Override
     protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain) throws ServletException, IOException {
@@ -42,74 +72,118 @@ public class ClerkJwtAuthFilter extends OncePerRequestFilter {
         }
         // For webhook endpoints, skip JWT validation and continue the filter chain
         if (request.getRequestURI().contains("/webhooks") ||
-                request.getRequestURI().contains("/public") ||
-                request.getRequestURI().contains("/download") ||
-                request.getRequestURI().contains("/health")) {
+                request.getRequestURI().contains("/health") ||
+                request.getRequestURI().contains("/admin/")) {
             filterChain.doFilter(request, response);
             return;
         }
 
-        System.out.println("=== JWT AUTH DEBUG ===");
-        System.out.println("Request URI: " + request.getRequestURI());
-        System.out.println("Request Method: " + request.getMethod());
-
         String authHeader = request.getHeader("Authorization");
-        System.out.println("Auth Header: " + (authHeader != null ? "Present" : "Missing"));
+
+        // Public files and downloads work without a token, but a signed-in caller is still identified
+        // so that their traffic counts against their own plan
+        if (request.getRequestURI().contains("/public") || request.getRequestURI().contains("/download")) {
+            if (authHeader != null && authHeader.startsWith("Bearer ")) {
+                try {
+                    VerifiedToken verified = verify(authHeader.substring(7));
+                    if (verified != null) {
+                        authenticate(verified);
+                    }
+                } catch (Exception e) {
+                    log.debug("Ignoring invalid token on public path: {}", e.getMessage());
+                }
+            }
+            filterChain.doFilter(request, response);
+            return;
+        }
 
         if (authHeader == null || !authHeader.startsWith("Bearer ")) {
-            System.out.println("ERROR: Missing or invalid Authorization header");
+            log.debug("Missing or invalid Authorization header for {} {}", request.getMethod(), request.getRequestURI());
             response.sendError(HttpServletResponse.SC_FORBIDDEN, "Authorization header missing/invalid");
             return;
         }
 
         try {
-            String token = authHeader.substring(7);
-            System.out.println("Token length: " + token.length());
-
-            String[] chunks = token.split("\\.");
-            if (chunks.length < 3) {
-                System.out.println("ERROR: Invalid JWT format");
-                response.sendError(HttpServletResponse.SC_FORBIDDEN, "Invalid JWT token format");
+            VerifiedToken verified = verify(authHeader.substring(7));
+            if (verified == null) {
+                response.sendError(HttpServletResponse.SC_FORBIDDEN, "Invalid JWT token: unknown signing key");
                 return;
             }
+            authenticate(verified);
+        } catch (Exception e) {
+            log.debug("JWT validation failed: {}", e.getMessage(), e);
+            response.sendError(HttpServletResponse.SC_FORBIDDEN, "Invalid JWT token: " + e.getMessage());
+            return;
+        }
+        filterChain.doFilter(request, response);
+    }
 
-            String headerJson = new String(Base64.getUrlDecoder().decode(chunks[0]));
-            ObjectMapper mapper = new ObjectMapper();
-            JsonNode headerNode = mapper.readTree(headerJson);
+    /**
+     * Checks the token's signature, issuer and expiry. Returns {@code null} when it is signed with
+     * a key Clerk does not publish, and throws for anything else that is wrong with it.
+     */
+    private VerifiedToken verify(String token) throws Exception {
+        String tokenHash = hash(token);
+        VerifiedToken verified = verifiedTokens.getIfPresent(tokenHash);
+        if (verified != null && verified.expiresAt().isAfter(Instant.now())) {
+            return verified;
+        }
 
-            if (!headerNode.has("kid")) {
-                System.out.println("TOKEN ERROR: Missing kid");
-                response.sendError(HttpServletResponse.SC_FORBIDDEN, "Token header is missing kid");
-                return;
-            }
+        String[] chunks = token.split("\\.");
+        if (chunks.length < 3) {
+            throw new IllegalArgumentException("Invalid JWT token format");
+        }
 
-            String kid = headerNode.get("kid").asText();
-            System.out.println("Token kid: " + kid);
+        JsonNode headerNode = objectMapper.readTree(Base64.getUrlDecoder().decode(chunks[0]));
+        if (!headerNode.has("kid")) {
+            throw new IllegalArgumentException("Token header is missing kid");
+        }
+
+        String kid = headerNode.get("kid").asText();
+        PublicKey publicKey = jwksProvider.getPublicKey(kid);
+        if (publicKey == null) {
+            log.debug("Unknown signing key {}", kid);
+            return null;
+        }
 
-            PublicKey publicKey = jwksProvider.getPublicKey(kid);
+        //verify the token
+        Claims claims = parserFor(kid, publicKey)
+                .parseClaimsJws(token)
+                .getBody();
 
-            //verify the token
-            Claims claims = Jwts.parserBuilder()
+        verified = new VerifiedToken(claims.getSubject(), claims.getExpiration() != null ? claims.getExpiration().toInstant() : Instant.now());
+        if (claims.getExpiration() != null) {
+            verifiedTokens.put(tokenHash, verified);
+        }
+        log.debug("JWT validation successful for user: {}", verified.clerkId());
+        return verified;
+    }
+
+    private static void authenticate(VerifiedToken verified) {
+        UsernamePasswordAuthenticationToken authenticationToken = new UsernamePasswordAuthenticationToken(verified.clerkId(), null, Collections.singletonList(new SimpleGrantedAuthority("ROLE_ADMIN")));
+        SecurityContextHolder.getContext().setAuthentication(authenticationToken);
+    }
+
+    private JwtParser parserFor(String kid, PublicKey publicKey) {
+        KeyedParser keyed = parsers.get(kid);
+        if (keyed == null || keyed.key() != publicKey) {
+            keyed = new KeyedParser(publicKey, Jwts.parserBuilder()
                     .setSigningKey(publicKey)
                     .setAllowedClockSkewSeconds(60)
                     .requireIssuer(clerkIssuer)
-                    .build()
-                    .parseClaimsJws(token)
-                    .getBody();
+                    .build());
+            parsers.put(kid, keyed);
+        }
+        return keyed.parser();
+    }
 
-            String clerkId = claims.getSubject();
-            System.out.println("JWT validation successful for user: " + clerkId);
+    private static String hash(String token) throws NoSuchAlgorithmException {
+        return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(token.getBytes(StandardCharsets.US_ASCII)));
+    }
 
-            UsernamePasswordAuthenticationToken authenticationToken = new UsernamePasswordAuthenticationToken(clerkId, null, Collections.singletonList(new SimpleGrantedAuthority("ROLE_ADMIN")));
+    private record VerifiedToken(String clerkId, Instant expiresAt) {
+    }
 
-            SecurityContextHolder.getContext().setAuthentication(authenticationToken);
-            filterChain.doFilter(request, response);
-        } catch (Exception e) {
-            System.out.println("JWT validation failed: " + e.getMessage());
-            e.printStackTrace();
-            response.sendError(HttpServletResponse.SC_FORBIDDEN, "Invalid JWT token: " + e.getMessage());
-            return;
-        }
+    private record KeyedParser(PublicKey key, JwtParser parser) {
     }
 }
-
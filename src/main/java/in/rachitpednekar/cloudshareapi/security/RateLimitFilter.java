@@ -0,0 +1,344 @@
+package in.rachitpednekar.cloudshareapi.security;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import in.rachitpednekar.cloudshareapi.config.RateLimitProperties;
+import in.rachitpednekar.cloudshareapi.config.RateLimitProperties.PlanLimits;
+import in.rachitpednekar.cloudshareapi.service.UserCreditService;
+import jakarta.annotation.PostConstruct;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ReadListener;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletInputStream;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletRequestWrapper;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpServletResponseWrapper;
+import lombok.RequiredArgsConstructor;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.security.authentication.AnonymousAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-user request-rate and bandwidth limits, sized by the plan in {@code UserCredits}. Runs right
+ * after {@link ClerkJwtAuthFilter}; anonymous traffic such as public downloads is limited per
+ * client address with the basic plan. Behind a proxy that address is the forwarded one, which
+ * Tomcat resolves under {@code server.forward-headers-strategy=native}.
+ * <p>
+ * Uploads pay for their {@code Content-Length} up front, and for any body bytes beyond it, such as
+ * a chunked body, as they are read. Downloads pay for every chunk as it is written. Either way the
+ * transfer is paused while the byte bucket is in debt, so a body larger than the burst goes out at
+ * the plan's rate, however many are in flight. A range is handed to Tomcat's sendfile only if the
+ * bucket can pay for all of it up front; otherwise this filter writes it at the limited rate.
+ */
+@Component
+@RequiredArgsConstructor
+public class RateLimitFilter extends OncePerRequestFilter {
+
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+    private final RateLimitProperties properties;
+    private final UserCreditService userCreditService;
+
+    //limiters of idle users are dropped after idleTimeout
+    private Cache<String, Limiter> limiters;
+
+    @PostConstruct
+    void init() {
+        limiters = Caffeine.newBuilder()
+                .expireAfterAccess(properties.getIdleTimeout())
+                .build();
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        String uri = request.getRequestURI();
+        return !properties.isEnabled()
+                || "OPTIONS".equals(request.getMethod())
+                || uri.contains("/webhooks")
+                || uri.contains("/health")
+                || uri.contains("/admin/");
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain) throws ServletException, IOException {
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        boolean authenticated = authentication != null && authentication.isAuthenticated()
+                && !(authentication instanceof AnonymousAuthenticationToken);
+        String key = authenticated ? authentication.getName() : "ip:" + request.getRemoteAddr();
+        String plan = authenticated ? userCreditService.getUserCredits(key).getPlan() : null;
+        Limiter limiter = limiters.get(key, k -> newLimiter(plan));
+        if (!Objects.equals(limiter.plan(), plan)) {
+            limiter = newLimiter(plan);
+            limiters.put(key, limiter);
+        }
+
+        long waitNanos = limiter.requests().tryTake(1);
+        if (waitNanos == 0) {
+            waitNanos = limiter.bytes().takeWithDebt(Math.max(0, request.getContentLengthLong()));
+        }
+        if (waitNanos > 0) {
+            response.setHeader(HttpHeaders.RETRY_AFTER, String.valueOf(Math.max(1, TimeUnit.NANOSECONDS.toSeconds(waitNanos + 999_999_999))));
+            response.sendError(HttpStatus.TOO_MANY_REQUESTS.value(), "Too many requests");
+            return;
+        }
+
+        if ("POST".equals(request.getMethod()) || "PUT".equals(request.getMethod())) {
+            filterChain.doFilter(new CountingRequest(request, limiter.bytes(), Math.max(0, request.getContentLengthLong())), response);
+            return;
+        }
+
+        SendfileRequest sendfile = new SendfileRequest(request, limiter.bytes());
+        CountingResponse counting = new CountingResponse(response, limiter.bytes());
+        filterChain.doFilter(sendfile, counting);
+        if (sendfile.deferred != null && !"HEAD".equals(request.getMethod())) {
+            sendfile.deferred.writeTo(counting.getOutputStream());
+        }
+    }
+
+    private Limiter newLimiter(String plan) {
+        PlanLimits limits = properties.limitsFor(plan);
+        return new Limiter(plan,
+                new TokenBucket(limits.getRequestsPerSecond(), limits.getRequestBurst()),
+                new TokenBucket(limits.getBytesPerSecond().toBytes(), limits.getByteBurst().toBytes()));
+    }
+
+    private record Limiter(String plan, TokenBucket requests, TokenBucket bytes) {
+    }
+
+    /**
+     * Charges {@code bytes} and then waits out any debt, so a long transfer is held to the rate.
+     */
+    private static void chargeAndWait(TokenBucket bucket, long bytes) throws IOException {
+        bucket.charge(bytes);
+        long waitNanos = bucket.debtNanos();
+        if (waitNanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while rate limited");
+            }
+        }
+    }
+
+    /**
+     * Charges the body bytes read through {@link #getInputStream()} beyond the {@code prepaid}
+     * ones. Multipart parts parsed by the container are read past this wrapper, but those bodies
+     * are bounded by the multipart size limits.
+     */
+    private static final class CountingRequest extends HttpServletRequestWrapper {
+
+        private final TokenBucket bytes;
+        private final long prepaid;
+        private CountingInputStream in;
+
+        CountingRequest(HttpServletRequest request, TokenBucket bytes, long prepaid) {
+            super(request);
+            this.bytes = bytes;
+            this.prepaid = prepaid;
+        }
+
+        @Override
+        public ServletInputStream getInputStream() throws IOException {
+            if (in == null) {
+                in = new CountingInputStream(super.getInputStream(), bytes, prepaid);
+            }
+            return in;
+        }
+    }
+
+    private static final class CountingInputStream extends ServletInputStream {
+
+        private final ServletInputStream delegate;
+        private final TokenBucket bytes;
+        private long unpaid;
+
+        CountingInputStream(ServletInputStream delegate, TokenBucket bytes, long prepaid) {
+            this.delegate = delegate;
+            this.bytes = bytes;
+            this.unpaid = -prepaid;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = delegate.read();
+            if (b >= 0) {
+                counted(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = delegate.read(b, off, len);
+            if (n > 0) {
+                counted(n);
+            }
+            return n;
+        }
+
+        private void counted(int n) throws IOException {
+            long before = unpaid;
+            unpaid += n;
+            long due = unpaid - Math.max(0, before);
+            if (due > 0) {
+                chargeAndWait(bytes, due);
+            }
+        }
+
+        @Override
+        public boolean isFinished() {
+            return delegate.isFinished();
+        }
+
+        @Override
+        public boolean isReady() {
+            return delegate.isReady();
+        }
+
+        @Override
+        public void setReadListener(ReadListener readListener) {
+            delegate.setReadListener(readListener);
+        }
+
+        @Override
+        public void close() throws IOException {
+            delegate.close();
+        }
+    }
+
+    /**
+     * Lets a sendfile range through only if the byte bucket can pay for it now. Otherwise the range
+     * is kept back from Tomcat and written by the filter once the chain returns. The download
+     * service sets the end attribute last, so the whole range is known when it arrives.
+     */
+    private static final class SendfileRequest extends HttpServletRequestWrapper {
+
+        private final TokenBucket bytes;
+        private DeferredRange deferred;
+
+        SendfileRequest(HttpServletRequest request, TokenBucket bytes) {
+            super(request);
+            this.bytes = bytes;
+        }
+
+        @Override
+        public void setAttribute(String name, Object o) {
+            if (SENDFILE_END.equals(name) && o instanceof Long end
+                    && getAttribute(SENDFILE_FILENAME) instanceof String file
+                    && getAttribute(SENDFILE_START) instanceof Long start
+                    && bytes.tryTake(end - start) != 0) {
+                removeAttribute(SENDFILE_FILENAME);
+                removeAttribute(SENDFILE_START);
+                deferred = new DeferredRange(Path.of(file), start, end);
+                return;
+            }
+            super.setAttribute(name, o);
+        }
+    }
+
+    private record DeferredRange(Path file, long start, long end) {
+
+        void writeTo(OutputStream out) throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                byte[] buffer = new byte[64 * 1024];
+                long position = start;
+                while (position < end) {
+                    int n = channel.read(ByteBuffer.wrap(buffer, 0, (int) Math.min(buffer.length, end - position)), position);
+                    if (n < 0) {
+                        throw new EOFException("File ended before the requested range");
+                    }
+                    out.write(buffer, 0, n);
+                    position += n;
+                }
+            }
+        }
+    }
+
+    /**
+     * Charges the body bytes written through {@link #getOutputStream()}, whatever the framing.
+     */
+    private static final class CountingResponse extends HttpServletResponseWrapper {
+
+        private final TokenBucket bytes;
+        private CountingOutputStream out;
+
+        CountingResponse(HttpServletResponse response, TokenBucket bytes) {
+            super(response);
+            this.bytes = bytes;
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            if (out == null) {
+                out = new CountingOutputStream(super.getOutputStream(), bytes);
+            }
+            return out;
+        }
+    }
+
+    private static final class CountingOutputStream extends ServletOutputStream {
+
+        private final ServletOutputStream delegate;
+        private final TokenBucket bytes;
+
+        CountingOutputStream(ServletOutputStream delegate, TokenBucket bytes) {
+            this.delegate = delegate;
+            this.bytes = bytes;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            delegate.write(b);
+            chargeAndWait(bytes, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            delegate.write(b, off, len);
+            if (len > 0) {
+                chargeAndWait(bytes, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            delegate.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            delegate.close();
+        }
+
+        @Override
+        public boolean isReady() {
+            return delegate.isReady();
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+            delegate.setWriteListener(writeListener);
+        }
+    }
+}
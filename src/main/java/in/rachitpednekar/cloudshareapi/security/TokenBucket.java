@@ -0,0 +1,80 @@
+package in.rachitpednekar.cloudshareapi.security;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket, kept as a single "theoretical arrival time" (the GCRA form): the bucket
+ * is full when that time is at or before now, and each token taken pushes it forward by one
+ * emission interval. A take only ever CASes one long, so concurrent requests for the same user
+ * never block each other.
+ */
+class TokenBucket {
+
+    private static final long MAX_DEBT_NANOS = TimeUnit.DAYS.toNanos(1);
+
+    private final long nanosPerToken;
+    private final long burstNanos;
+    private final AtomicLong arrival = new AtomicLong(Long.MIN_VALUE);
+
+    TokenBucket(double tokensPerSecond, long burst) {
+        this.nanosPerToken = Math.max(1, (long) (1_000_000_000L / tokensPerSecond));
+        this.burstNanos = nanosPerToken * Math.max(1, burst);
+    }
+
+    /**
+     * Takes {@code tokens} if the bucket holds that many. Returns 0 on success, otherwise the
+     * nanoseconds until it would.
+     */
+    long tryTake(long tokens) {
+        return take(tokens, false);
+    }
+
+    /**
+     * Takes {@code tokens} as long as the bucket is not already in debt, even if that drives it
+     * below zero. Used for bytes, where one large transfer may exceed the whole burst and callers
+     * pay for it by waiting afterwards.
+     */
+    long takeWithDebt(long tokens) {
+        return take(tokens, true);
+    }
+
+    /**
+     * Takes {@code tokens} unconditionally, for work that has already been done.
+     */
+    void charge(long tokens) {
+        while (true) {
+            long current = arrival.get();
+            if (arrival.compareAndSet(current, Math.max(current, System.nanoTime()) + cost(tokens))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Nanoseconds until the bucket is out of debt, 0 if it is not in debt.
+     */
+    long debtNanos() {
+        return Math.max(0, arrival.get() - burstNanos - System.nanoTime());
+    }
+
+    private long take(long tokens, boolean allowDebt) {
+        while (true) {
+            long now = System.nanoTime();
+            long current = arrival.get();
+            long start = Math.max(current, now);
+            long next = start + cost(tokens);
+            long allowedAt = (allowDebt ? start + nanosPerToken : next) - burstNanos;
+            if (allowedAt > now) {
+                return allowedAt - now;
+            }
+            if (arrival.compareAndSet(current, next)) {
+                return 0;
+            }
+        }
+    }
+
+    private long cost(long tokens) {
+        return Math.min(tokens, MAX_DEBT_NANOS / nanosPerToken) * nanosPerToken;
+    }
+}
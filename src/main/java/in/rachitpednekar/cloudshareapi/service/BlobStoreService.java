@@ -0,0 +1,304 @@
+package in.rachitpednekar.cloudshareapi.service;
+
+import in.rachitpednekar.cloudshareapi.document.BlobDocument;
+import in.rachitpednekar.cloudshareapi.storage.StorageBackend;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HexFormat;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.IntStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Content-addressed storage for uploaded bytes. Every distinct content is kept once in the
+ * {@link StorageBackend} with its SHA-256 as the key, and a reference count in the {@code blobs}
+ * collection tracks how many files point at it.
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class BlobStoreService {
+
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+    private static final int LOCK_STRIPES = 64;
+    private static final Duration TOMBSTONE_TIMEOUT = Duration.ofMinutes(5);
+    private static final Duration TOMBSTONE_POLL = Duration.ofMillis(50);
+    private static final int TOMBSTONE_MAX_WAITS = 100;
+
+    public static final String GZIP = "gzip";
+
+    //formats that compress well; images, video, archives and office files are already compressed
+    private static final Set<String> COMPRESSIBLE_TYPES = Set.of(
+            "application/json", "application/xml", "application/javascript", "application/x-ndjson",
+            "application/csv", "application/x-yaml", "application/sql", "image/svg+xml", "image/bmp");
+
+    private final MongoTemplate mongoTemplate;
+    private final StorageBackend storageBackend;
+
+    //serializes the count update and the file placement for one hash on this node; these are held
+    //across Mongo and storage I/O from virtual threads, which a monitor would pin to their carrier
+    private final ReentrantLock[] locks = IntStream.range(0, LOCK_STRIPES).mapToObj(i -> new ReentrantLock()).toArray(ReentrantLock[]::new);
+
+    @Value("${cloudshare.storage.staging-dir:upload/tmp}")
+    private String stagingDir;
+
+    @Value("${cloudshare.storage.compression.enabled:true}")
+    private boolean compressionEnabled;
+
+    /**
+     * Copies the stream into a staging file, hashing and counting the bytes on the way so the
+     * content never has to be read back, then commits it as a blob holding one new reference.
+     * Compressible content types are gzipped in the same pass; the hash and size always describe
+     * the original bytes.
+     */
+    public StoredBlob write(InputStream in, String contentType) throws IOException {
+        Path staged = newStagingFile();
+        boolean compress = shouldCompress(contentType);
+        MessageDigest digest = newSha256();
+        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        long size = 0;
+
+        try (OutputStream out = openStaging(staged, compress)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+                out.write(buffer, 0, read);
+                size += read;
+            }
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(staged);
+            throw e;
+        }
+        return commit(staged, HexFormat.of().formatHex(digest.digest()), size, compress ? GZIP : null);
+    }
+
+    /**
+     * Commits a fully written staging file as a blob holding one new reference. Uncompressible
+     * content is hashed and moved into place; anything else is rewritten compressed.
+     */
+    public StoredBlob commitFile(Path staged, String contentType) throws IOException {
+        if (shouldCompress(contentType)) {
+            try (InputStream in = Files.newInputStream(staged)) {
+                return write(in, contentType);
+            } finally {
+                Files.deleteIfExists(staged);
+            }
+        }
+
+        MessageDigest digest = newSha256();
+        ByteBuffer buffer = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+        long size = 0;
+
+        try (FileChannel channel = FileChannel.open(staged, StandardOpenOption.READ)) {
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                size += buffer.remaining();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        return commit(staged, HexFormat.of().formatHex(digest.digest()), size, null);
+    }
+
+    /**
+     * Takes one more reference on a blob that is already stored. Returns {@code null} when the
+     * server does not hold the content, in which case the caller has to send the bytes.
+     */
+    public StoredBlob acquire(String sha256) throws IOException {
+        ReentrantLock lock = lockFor(sha256);
+        lock.lock();
+        try {
+            BlobDocument blob = mongoTemplate.findAndModify(
+                    Query.query(Criteria.where("_id").is(sha256).and("refCount").gt(0)),
+                    new Update().inc("refCount", 1),
+                    FindAndModifyOptions.options().returnNew(true),
+                    BlobDocument.class);
+            if (blob == null) {
+                return null;
+            }
+            if (storageBackend.stat(sha256) == null) {
+                release(sha256);
+                return null;
+            }
+            return new StoredBlob(sha256, blob.getSize(), blob.getContentEncoding());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops one reference and removes the bytes once nothing points at them anymore. Returns
+     * {@code true} when this was the last reference.
+     * <p>
+     * The last reference first tombstones the blob document, so no node can take a new reference
+     * while the bytes are being deleted, and only removes the document afterwards. A commit of the
+     * same content on another node waits for the tombstone to go and then writes its own copy.
+     */
+    public boolean release(String sha256) {
+        ReentrantLock lock = lockFor(sha256);
+        lock.lock();
+        try {
+            BlobDocument blob = mongoTemplate.findAndModify(Query.query(Criteria.where("_id").is(sha256)),
+                    new Update().inc("refCount", -1),
+                    FindAndModifyOptions.options().returnNew(true), BlobDocument.class);
+            if (blob == null || blob.getRefCount() > 0) {
+                return false;
+            }
+
+            Instant tombstone = Instant.now();
+            BlobDocument claimed = mongoTemplate.findAndModify(
+                    Query.query(Criteria.where("_id").is(sha256).and("refCount").lte(0).and("deletingAt").exists(false)),
+                    new Update().set("deletingAt", tombstone),
+                    BlobDocument.class);
+            if (claimed == null) {
+                //a commit took a new reference in between
+                return false;
+            }
+
+            try {
+                storageBackend.delete(sha256);
+            } catch (IOException e) {
+                log.warn("Could not remove unreferenced blob {}", sha256, e);
+            }
+            mongoTemplate.remove(Query.query(Criteria.where("_id").is(sha256).and("deletingAt").is(tombstone)), BlobDocument.class);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private StoredBlob commit(Path staged, String sha256, long size, String contentEncoding) throws IOException {
+        ReentrantLock lock = lockFor(sha256);
+        lock.lock();
+        try {
+            Query query = Query.query(Criteria.where("_id").is(sha256));
+            long storedSize = Files.size(staged);
+            BlobDocument blob;
+            try {
+                blob = reference(sha256, size, storedSize, contentEncoding);
+            } catch (IOException | RuntimeException e) {
+                Files.deleteIfExists(staged);
+                throw e;
+            }
+
+            try {
+                if (storageBackend.stat(sha256) != null) {
+                    Files.delete(staged);
+                } else {
+                    storageBackend.put(sha256, staged);
+                    if (!Objects.equals(blob.getContentEncoding(), contentEncoding)) {
+                        //the blob was recorded but its bytes were missing, so the copy just written defines the encoding
+                        mongoTemplate.updateFirst(query, new Update().set("contentEncoding", contentEncoding).set("storedSize", storedSize), BlobDocument.class);
+                        blob.setContentEncoding(contentEncoding);
+                    }
+                }
+            } catch (IOException e) {
+                Files.deleteIfExists(staged);
+                release(sha256);
+                throw e;
+            }
+            return new StoredBlob(sha256, size, blob.getContentEncoding());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes one reference on the blob document, creating it if needed. While the blob is
+     * tombstoned the upsert collides with it on {@code _id}, so this waits for the deletion to
+     * finish, and clears tombstones left behind by a node that died half way.
+     */
+    private BlobDocument reference(String sha256, long size, long storedSize, String contentEncoding) throws IOException {
+        Query live = Query.query(Criteria.where("_id").is(sha256).and("deletingAt").exists(false));
+        Update update = new Update().inc("refCount", 1)
+                .setOnInsert("size", size)
+                .setOnInsert("storedSize", storedSize)
+                .setOnInsert("contentEncoding", contentEncoding)
+                .setOnInsert("createdAt", Instant.now());
+        for (int attempt = 0; attempt < TOMBSTONE_MAX_WAITS; attempt++) {
+            try {
+                return mongoTemplate.findAndModify(live, update,
+                        FindAndModifyOptions.options().upsert(true).returnNew(true), BlobDocument.class);
+            } catch (DuplicateKeyException e) {
+                mongoTemplate.remove(Query.query(Criteria.where("_id").is(sha256)
+                        .and("deletingAt").lt(Instant.now().minus(TOMBSTONE_TIMEOUT))), BlobDocument.class);
+                try {
+                    Thread.sleep(TOMBSTONE_POLL);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for blob " + sha256 + " to be removed", interrupted);
+                }
+            }
+        }
+        throw new IOException("Blob " + sha256 + " is still being removed");
+    }
+
+    private OutputStream openStaging(Path staged, boolean compress) throws IOException {
+        OutputStream out = Channels.newOutputStream(FileChannel.open(staged, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE));
+        return compress ? new GZIPOutputStream(out, COPY_BUFFER_SIZE) : out;
+    }
+
+    private boolean shouldCompress(String contentType) {
+        if (!compressionEnabled || contentType == null) {
+            return false;
+        }
+        String type = contentType.split(";")[0].trim().toLowerCase(Locale.ROOT);
+        return type.startsWith("text/") || type.endsWith("+json") || type.endsWith("+xml") || COMPRESSIBLE_TYPES.contains(type);
+    }
+
+    public Path newStagingFile() throws IOException {
+        Path staging = Paths.get(stagingDir).toAbsolutePath().normalize();
+        Files.createDirectories(staging);
+        return staging.resolve(UUID.randomUUID().toString());
+    }
+
+    private ReentrantLock lockFor(String sha256) {
+        return locks[Math.floorMod(sha256.hashCode(), LOCK_STRIPES)];
+    }
+
+    private static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * A committed blob. The content hash doubles as its {@link StorageBackend} key, and
+     * {@code contentEncoding} is {@value #GZIP} when the stored bytes are compressed.
+     */
+    public record StoredBlob(String sha256, long size, String contentEncoding) {
+
+        public String key() {
+            return sha256;
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package in.rachitpednekar.cloudshareapi.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import in.rachitpednekar.cloudshareapi.document.ClerkEventDocument;
+import in.rachitpednekar.cloudshareapi.document.ProfileDocument;
+import in.rachitpednekar.cloudshareapi.document.UserCredits;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Applies Clerk user events in the background. Verified deliveries are stored under their svix-id,
+ * so redeliveries are dropped, and acknowledged at once. The consumer claims queued events in
+ * batches, keeps only the latest event per user, and writes profiles and initial credits through
+ * {@link #upsertUsers}, so a burst of events for one user costs a single write.
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class ClerkEventService {
+
+    private static final Set<String> HANDLED_TYPES = Set.of("user.created", "user.updated", "user.deleted");
+
+    private final MongoTemplate mongoTemplate;
+    private final ProfileService profileService;
+    private final ObjectMapper objectMapper;
+
+    @Value("${clerk.webhook.batch-size:500}")
+    private int batchSize;
+
+    @Value("${clerk.webhook.lease:PT2M}")
+    private Duration lease;
+
+    /**
+     * Queues a verified event. Returns false if an event with this svix-id was already queued.
+     */
+    public boolean enqueue(String svixId, String payload) throws IOException {
+        JsonNode root = objectMapper.readTree(payload);
+        String type = root.path("type").asText();
+        if (!HANDLED_TYPES.contains(type)) {
+            log.debug("Ignoring Clerk event type {}", type);
+            return true;
+        }
+
+        JsonNode data = root.path("data");
+        Instant now = Instant.now();
+        try {
+            mongoTemplate.insert(ClerkEventDocument.builder()
+                    .id(svixId)
+                    .type(type)
+                    .clerkId(data.path("id").asText())
+                    .data(data.toString())
+                    .eventTimestamp(root.path("timestamp").asLong(now.toEpochMilli()))
+                    .status("PENDING")
+                    .receivedAt(now)
+                    .updatedAt(now)
+                    .build());
+            return true;
+        } catch (DuplicateKeyException e) {
+            return false;
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${clerk.webhook.poll-interval:PT1S}")
+    public void processPending() {
+        List<ClerkEventDocument> events;
+        while (!(events = claimBatch()).isEmpty()) {
+            apply(events);
+            mongoTemplate.updateMulti(Query.query(Criteria.where("claim").is(events.get(0).getClaim())),
+                    new Update().set("status", "DONE").set("updatedAt", Instant.now()), ClerkEventDocument.class);
+        }
+    }
+
+    private List<ClerkEventDocument> claimBatch() {
+        Instant now = Instant.now();
+        Criteria claimable = new Criteria().orOperator(
+                Criteria.where("status").is("PENDING"),
+                Criteria.where("status").is("PROCESSING").and("updatedAt").lt(now.minus(lease)));
+        Query candidates = Query.query(claimable).with(Sort.by("updatedAt")).limit(batchSize);
+        candidates.fields().include("_id");
+        List<Object> ids = mongoTemplate.find(candidates, ClerkEventDocument.class).stream()
+                .map(event -> (Object) event.getId())
+                .toList();
+        if (ids.isEmpty()) {
+            return List.of();
+        }
+
+        //another node may claim some of the same events at the same time, each event goes to one of us
+        String claim = UUID.randomUUID().toString();
+        mongoTemplate.updateMulti(Query.query(new Criteria().andOperator(Criteria.where("_id").in(ids), claimable)),
+                new Update().set("status", "PROCESSING").set("claim", claim).set("updatedAt", now),
+                ClerkEventDocument.class);
+        return mongoTemplate.find(Query.query(Criteria.where("claim").is(claim)), ClerkEventDocument.class);
+    }
+
+    private void apply(List<ClerkEventDocument> events) {
+        Map<String, ClerkEventDocument> latest = new LinkedHashMap<>();
+        events.stream()
+                .sorted(Comparator.comparing(ClerkEventDocument::getEventTimestamp))
+                .forEach(event -> latest.put(event.getClerkId(), event));
+
+        List<String> deleted = new ArrayList<>();
+        List<JsonNode> upserted = new ArrayList<>();
+        for (ClerkEventDocument event : latest.values()) {
+            if ("user.deleted".equals(event.getType())) {
+                deleted.add(event.getClerkId());
+                continue;
+            }
+            try {
+                upserted.add(objectMapper.readTree(event.getData()));
+            } catch (IOException e) {
+                log.warn("Skipping Clerk event {} with unreadable data", event.getId(), e);
+            }
+        }
+
+        if (!deleted.isEmpty()) {
+            mongoTemplate.remove(Query.query(Criteria.where("clerkId").in(deleted)), ProfileDocument.class);
+            deleted.forEach(profileService::evict);
+        }
+        upsertUsers(upserted);
+    }
+
+    /**
+     * Creates or updates the profiles of the given Clerk user objects, and gives users that have no
+     * credits yet their initial credits, with one unordered bulk write per collection. Safe to
+     * repeat. Returns the number of writes that failed, for example on a duplicate email.
+     */
+    public int upsertUsers(List<JsonNode> users) {
+        BulkOperations profiles = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, ProfileDocument.class);
+        BulkOperations credits = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, UserCredits.class);
+        Instant now = Instant.now();
+
+        List<String> clerkIds = new ArrayList<>(users.size());
+        for (JsonNode user : users) {
+            String clerkId = user.path("id").asText("");
+            if (clerkId.isEmpty()) {
+                continue;
+            }
+            Query byClerkId = Query.query(Criteria.where("clerkId").is(clerkId));
+            profiles.upsert(byClerkId, profileUpdate(user, now));
+            credits.upsert(byClerkId, new Update()
+                    .setOnInsert("clerkId", clerkId)
+                    .setOnInsert("credits", 5)
+                    .setOnInsert("plan", "BASIC"));
+            clerkIds.add(clerkId);
+        }
+        if (clerkIds.isEmpty()) {
+            return 0;
+        }
+
+        int failed = execute(profiles, "profiles") + execute(credits, "user credits");
+        clerkIds.forEach(profileService::evict);
+        return failed;
+    }
+
+    /**
+     * Same rules as {@link ProfileService#updateProfile}: empty fields in the event keep what is
+     * stored, and a profile created here starts with the usual five credits.
+     */
+    private Update profileUpdate(JsonNode data, Instant now) {
+        Update update = new Update()
+                .setOnInsert("clerkId", data.path("id").asText())
+                .setOnInsert("credits", 5)
+                .setOnInsert("createdAt", now);
+
+        JsonNode emailAddresses = data.path("email_addresses");
+        if (emailAddresses.isArray() && emailAddresses.size() > 0) {
+            setIfPresent(update, "email", emailAddresses.get(0).path("email_address").asText(""));
+        }
+        setIfPresent(update, "firstName", data.path("first_name").asText(""));
+        setIfPresent(update, "lastName", data.path("last_name").asText(""));
+        setIfPresent(update, "photoUrl", data.path("image_url").asText(""));
+        return update;
+    }
+
+    private void setIfPresent(Update update, String field, String value) {
+        if (!value.isEmpty()) {
+            update.set(field, value);
+        }
+    }
+
+    private int execute(BulkOperations bulk, String what) {
+        try {
+            bulk.execute();
+            return 0;
+        } catch (BulkOperationException e) {
+            //unordered, so everything but the failed writes went through
+            log.warn("{} of the Clerk {} writes failed: {}", e.getErrors().size(), what, e.getErrors());
+            return e.getErrors().size();
+        }
+    }
+}
@@ -0,0 +1,306 @@
+package in.rachitpednekar.cloudshareapi.service;
+
+import in.rachitpednekar.cloudshareapi.dto.FileMetadataDTO;
+import in.rachitpednekar.cloudshareapi.service.HotFileCache.CachedFile;
+import in.rachitpednekar.cloudshareapi.storage.StorageBackend;
+import in.rachitpednekar.cloudshareapi.storage.StorageStat;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.RequiredArgsConstructor;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+import org.springframework.util.MimeTypeUtils;
+import org.springframework.web.context.request.ServletWebRequest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Writes stored files to the response with conditional GET and byte-range support. When the
+ * backend keeps the file locally, whole files and single ranges go out through Tomcat's sendfile
+ * if the connector offers it, otherwise through {@link FileChannel#transferTo}, so the bytes are
+ * not copied through the heap either way.
+ * <p>
+ * Files stored gzipped are sent as they are, with {@code Content-Encoding: gzip}, to clients that
+ * accept it. Other clients get them decompressed on the fly.
+ * <p>
+ * Small public files are served from {@link HotFileCache} once they are hot.
+ */
+@Service
+@RequiredArgsConstructor
+public class FileDownloadService {
+
+    private static final String SENDFILE_SUPPORTED = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private final StorageBackend storageBackend;
+    private final HotFileCache hotFileCache;
+
+    public void send(FileMetadataDTO file, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String cacheControl = Boolean.TRUE.equals(file.getIsPublic()) ? "public, no-cache" : "private, no-cache";
+        send(file, cacheControl, ContentDisposition.attachment(), request, response);
+    }
+
+    /**
+     * Thumbnails never change once written, so unlike the files themselves they may be reused from
+     * cache for a day without revalidation.
+     */
+    public void sendThumbnail(FileMetadataDTO file, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        FileMetadataDTO thumbnail = FileMetadataDTO.builder()
+                .id(file.getId())
+                .name(file.getName() + ".jpg")
+                .type(MediaType.IMAGE_JPEG_VALUE)
+                .fileLocation(file.getThumbnailLocation())
+                .isPublic(file.getIsPublic())
+                .build();
+        String cacheControl = Boolean.TRUE.equals(file.getIsPublic()) ? "public, max-age=86400" : "private, max-age=86400";
+        send(thumbnail, cacheControl, ContentDisposition.inline(), request, response);
+    }
+
+    private void send(FileMetadataDTO file, String cacheControl, ContentDisposition.Builder disposition,
+                      HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String key = file.getFileLocation();
+        boolean cacheable = Boolean.TRUE.equals(file.getIsPublic());
+        CachedFile cached = cacheable ? hotFileCache.get(key) : null;
+        StorageStat stat = cached != null ? cached.stat() : storageBackend.stat(key);
+        if (stat == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "File content not found");
+            return;
+        }
+
+        boolean compressed = BlobStoreService.GZIP.equals(file.getContentEncoding());
+        boolean sendEncoded = compressed && acceptsGzip(request);
+        boolean decode = compressed && !sendEncoded;
+
+        long length = decode ? file.getSize() : stat.size();
+        long lastModified = stat.lastModified().toEpochMilli();
+        String validator = file.getSha256() != null ? file.getSha256() : Long.toHexString(stat.size()) + "-" + Long.toHexString(lastModified);
+        String etag = "\"" + validator + (sendEncoded ? "-gzip" : "") + "\"";
+
+        response.setHeader(HttpHeaders.CACHE_CONTROL, cacheControl);
+        if (compressed) {
+            response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        }
+        if (new ServletWebRequest(request, response).checkNotModified(etag, lastModified)) {
+            return;
+        }
+
+        String contentType = file.getType() != null ? file.getType() : MediaType.APPLICATION_OCTET_STREAM_VALUE;
+        if (sendEncoded) {
+            response.setHeader(HttpHeaders.CONTENT_ENCODING, BlobStoreService.GZIP);
+        }
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+        response.setHeader(HttpHeaders.CONTENT_DISPOSITION, disposition
+                .filename(file.getName(), StandardCharsets.UTF_8)
+                .build()
+                .toString());
+
+        List<long[]> ranges;
+        try {
+            ranges = resolveRanges(request, etag, lastModified, length);
+        } catch (IllegalArgumentException e) {
+            response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + length);
+            response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            return;
+        }
+        if (decode && ranges.size() > 1) {
+            //every range would mean inflating from the start again, so send the whole file instead
+            ranges = List.of();
+        }
+        boolean head = "HEAD".equals(request.getMethod());
+        //only whole stored bodies are worth caching, a range or an inflated body reads less than the file
+        if (cacheable && cached == null && !head && ranges.isEmpty() && !decode) {
+            cached = hotFileCache.load(key, stat);
+        }
+
+        if (ranges.isEmpty()) {
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.setContentType(contentType);
+            response.setContentLengthLong(length);
+            if (!head) {
+                transfer(key, cached, 0, length, decode, request, response);
+            }
+            return;
+        }
+
+        response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        if (ranges.size() == 1) {
+            long[] range = ranges.get(0);
+            response.setContentType(contentType);
+            response.setHeader(HttpHeaders.CONTENT_RANGE, contentRange(range, length));
+            response.setContentLengthLong(range[1] - range[0] + 1);
+            if (!head) {
+                transfer(key, cached, range[0], range[1] - range[0] + 1, decode, request, response);
+            }
+            return;
+        }
+
+        String boundary = MimeTypeUtils.generateMultipartBoundaryString();
+        response.setContentType("multipart/byteranges; boundary=" + boundary);
+        if (head) {
+            return;
+        }
+        ServletOutputStream out = response.getOutputStream();
+        for (long[] range : ranges) {
+            out.write(("\r\n--" + boundary + "\r\n"
+                    + HttpHeaders.CONTENT_TYPE + ": " + contentType + "\r\n"
+                    + HttpHeaders.CONTENT_RANGE + ": " + contentRange(range, length) + "\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+            copyRange(key, cached, range[0], range[1] - range[0] + 1, out);
+        }
+        out.write(("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Returns the requested ranges as inclusive {@code [start, end]} pairs, or an empty list when
+     * the whole file should be sent. Throws {@link IllegalArgumentException} for unsatisfiable ranges.
+     */
+    private List<long[]> resolveRanges(HttpServletRequest request, String etag, long lastModified, long length) {
+        String rangeHeader = request.getHeader(HttpHeaders.RANGE);
+        if (rangeHeader == null || !rangeMatchesValidator(request, etag, lastModified)) {
+            return List.of();
+        }
+
+        List<HttpRange> httpRanges;
+        try {
+            httpRanges = HttpRange.parseRanges(rangeHeader);
+        } catch (IllegalArgumentException e) {
+            //a malformed Range header is ignored rather than rejected
+            return List.of();
+        }
+
+        List<long[]> ranges = new ArrayList<>(httpRanges.size());
+        long total = 0;
+        for (HttpRange httpRange : httpRanges) {
+            long start = httpRange.getRangeStart(length);
+            long end = httpRange.getRangeEnd(length);
+            if (start >= length || start > end) {
+                throw new IllegalArgumentException("Requested range not satisfiable");
+            }
+            total += end - start + 1;
+            ranges.add(new long[]{start, end});
+        }
+        if (total > length) {
+            throw new IllegalArgumentException("Requested ranges exceed the file length");
+        }
+        return ranges;
+    }
+
+    private boolean rangeMatchesValidator(HttpServletRequest request, String etag, long lastModified) {
+        String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return ifRange.equals(etag);
+        }
+        long since = request.getDateHeader(HttpHeaders.IF_RANGE);
+        return since != -1 && lastModified / 1000 <= since / 1000;
+    }
+
+    private boolean acceptsGzip(HttpServletRequest request) {
+        String acceptEncoding = request.getHeader(HttpHeaders.ACCEPT_ENCODING);
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String token : acceptEncoding.split(",")) {
+            String[] parts = token.trim().split(";");
+            String coding = parts[0].trim();
+            if (coding.equalsIgnoreCase(BlobStoreService.GZIP) || coding.equals("*")) {
+                return parts.length < 2 || !parts[1].trim().matches("q=0(\\.0*)?");
+            }
+        }
+        return false;
+    }
+
+    private void transfer(String key, CachedFile cached, long start, long count, boolean decode, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (decode) {
+            copyDecoded(key, start, count, response.getOutputStream());
+            return;
+        }
+        if (cached != null) {
+            write(cached.slice(start, count), response.getOutputStream());
+            return;
+        }
+        Path path = storageBackend.localPath(key);
+        if (path != null && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORTED))) {
+            request.setAttribute(SENDFILE_FILENAME, path.toAbsolutePath().toString());
+            request.setAttribute(SENDFILE_START, start);
+            request.setAttribute(SENDFILE_END, start + count);
+            return;
+        }
+        copyRange(key, null, start, count, response.getOutputStream());
+    }
+
+    private void copyRange(String key, CachedFile cached, long start, long count, OutputStream out) throws IOException {
+        if (cached != null) {
+            write(cached.slice(start, count), out);
+            return;
+        }
+        Path path = storageBackend.localPath(key);
+        if (path != null) {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                transferTo(channel, start, count, Channels.newChannel(out));
+            }
+            return;
+        }
+        try (InputStream in = storageBackend.get(key, start, count)) {
+            in.transferTo(out);
+        }
+    }
+
+    private void copyDecoded(String key, long start, long count, OutputStream out) throws IOException {
+        try (InputStream in = new GZIPInputStream(storageBackend.get(key), COPY_BUFFER_SIZE)) {
+            in.skipNBytes(start);
+            byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            while (count > 0) {
+                int read = in.read(buffer, 0, (int) Math.min(buffer.length, count));
+                if (read == -1) {
+                    throw new IOException("File ended before the requested range was sent");
+                }
+                out.write(buffer, 0, read);
+                count -= read;
+            }
+        }
+    }
+
+    private void write(ByteBuffer body, OutputStream out) throws IOException {
+        WritableByteChannel target = Channels.newChannel(out);
+        while (body.hasRemaining()) {
+            target.write(body);
+        }
+    }
+
+    private void transferTo(FileChannel channel, long position, long count, WritableByteChannel target) throws IOException {
+        while (count > 0) {
+            long sent = channel.transferTo(position, count, target);
+            if (sent <= 0) {
+                throw new IOException("File ended before the requested range was sent");
+            }
+            position += sent;
+            count -= sent;
+        }
+    }
+
+    private String contentRange(long[] range, long length) {
+        return "bytes " + range[0] + "-" + range[1] + "/" + length;
+    }
+}
@@ -0,0 +1,151 @@
+package in.rachitpednekar.cloudshareapi.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.mongodb.client.MongoChangeStreamCursor;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import in.rachitpednekar.cloudshareapi.document.FileMetadataDocument;
+import in.rachitpednekar.cloudshareapi.repository.FileMetadataRepository;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Read-through cache of file metadata by id for the download paths. Ids that do not exist are
+ * cached too, for a shorter time. Every write to a file's metadata has to call
+ * {@link #invalidate(String)} afterwards; an invalidation waits for a load of the same id that is
+ * in flight, so a read that raced the write cannot put the old document back.
+ * <p>
+ * Writes made on other nodes arrive through a change stream on the file collection, which
+ * invalidates the ids it reports. The cache is only used while that stream is open, since without
+ * it another node's visibility change or delete would go unseen; change streams need a replica set.
+ * A deployment with a single node can set {@code single-node} to cache without the stream.
+ * <p>
+ * Cached documents are shared, callers must not modify them.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class FileMetadataCache {
+
+    private final FileMetadataRepository fileMetadataRepository;
+    private final MongoTemplate mongoTemplate;
+    private final MeterRegistry meterRegistry;
+
+    @Value("${cloudshare.metadata.cache.max-entries:100000}")
+    private long maxEntries;
+
+    @Value("${cloudshare.metadata.cache.ttl:PT1M}")
+    private Duration ttl;
+
+    @Value("${cloudshare.metadata.cache.negative-ttl:PT10S}")
+    private Duration negativeTtl;
+
+    @Value("${cloudshare.metadata.cache.single-node:false}")
+    private boolean singleNode;
+
+    @Value("${cloudshare.metadata.cache.reconnect-delay:PT5S}")
+    private Duration reconnectDelay;
+
+    private Cache<String, Optional<FileMetadataDocument>> cache;
+    private volatile boolean watching;
+    private volatile boolean streamOpen;
+
+    @PostConstruct
+    void init() {
+        cache = Caffeine.newBuilder()
+                .maximumSize(maxEntries)
+                .expireAfter(Expiry.creating((String id, Optional<FileMetadataDocument> file) -> file.isPresent() ? ttl : negativeTtl))
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "fileMetadata");
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void startWatching() {
+        if (singleNode) {
+            return;
+        }
+        watching = true;
+        Thread.ofVirtual().name("file-metadata-changes").start(this::watchChanges);
+    }
+
+    @PreDestroy
+    void stopWatching() {
+        watching = false;
+    }
+
+    public Optional<FileMetadataDocument> findById(String id) {
+        if (!singleNode && !streamOpen) {
+            return fileMetadataRepository.findById(id);
+        }
+        return cache.get(id, fileMetadataRepository::findById);
+    }
+
+    public void invalidate(String id) {
+        if (id != null) {
+            cache.invalidate(id);
+        }
+    }
+
+    private void watchChanges() {
+        String collection = mongoTemplate.getCollectionName(FileMetadataDocument.class);
+        while (watching) {
+            try (MongoChangeStreamCursor<ChangeStreamDocument<Document>> cursor = mongoTemplate.getCollection(collection)
+                    .watch(List.of(Aggregates.match(Filters.in("operationType", "insert", "update", "replace", "delete"))))
+                    .maxAwaitTime(1, TimeUnit.SECONDS)
+                    .cursor()) {
+                //whatever changed while no stream was open is unknown
+                cache.invalidateAll();
+                streamOpen = true;
+                while (watching) {
+                    ChangeStreamDocument<Document> change = cursor.tryNext();
+                    if (change != null) {
+                        invalidate(idOf(change.getDocumentKey()));
+                    }
+                }
+            } catch (RuntimeException e) {
+                streamOpen = false;
+                if (!watching) {
+                    return;
+                }
+                log.warn("File metadata change stream closed, reading metadata uncached until it reopens", e);
+                try {
+                    Thread.sleep(reconnectDelay);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            } finally {
+                streamOpen = false;
+            }
+        }
+    }
+
+    private static String idOf(BsonDocument documentKey) {
+        BsonValue id = documentKey != null ? documentKey.get("_id") : null;
+        if (id == null) {
+            return null;
+        }
+        return id.isObjectId() ? id.asObjectId().getValue().toHexString() : id.isString() ? id.asString().getValue() : null;
+    }
+}
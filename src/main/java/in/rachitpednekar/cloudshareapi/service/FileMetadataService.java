@@ -3,86 +3,417 @@ package in.rachitpednekar.cloudshareapi.service;
 import in.rachitpednekar.cloudshareapi.document.FileMetadataDocument;
 import in.rachitpednekar.cloudshareapi.document.ProfileDocument;
 import in.rachitpednekar.cloudshareapi.dto.FileMetadataDTO;
+import in.rachitpednekar.cloudshareapi.dto.FilePageDTO;
+import in.rachitpednekar.cloudshareapi.dto.FileReferenceDTO;
 import in.rachitpednekar.cloudshareapi.repository.FileMetadataRepository;
+import in.rachitpednekar.cloudshareapi.service.BlobStoreService.StoredBlob;
+import in.rachitpednekar.cloudshareapi.storage.StorageBackend;
+import jakarta.servlet.http.HttpServletRequest;
 import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.fileupload2.core.DiskFileItem;
+import org.apache.commons.fileupload2.core.DiskFileItemFactory;
+import org.apache.commons.fileupload2.core.FileItemInput;
+import org.apache.commons.fileupload2.core.FileItemInputIterator;
+import org.apache.commons.fileupload2.jakarta.servlet6.JakartaServletFileUpload;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.AggregationUpdate;
+import org.springframework.data.mongodb.core.aggregation.BooleanOperators;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
-import org.springframework.util.StringUtils;
+import org.springframework.util.unit.DataSize;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.server.ResponseStatusException;
 
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
-import java.util.UUID;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 @Service
 @RequiredArgsConstructor
+@Slf4j
 
 public class FileMetadataService {
     private final ProfileService profileService;
     private final UserCreditService userCreditService;
     private final FileMetadataRepository fileMetadataRepository;
+    private final BlobStoreService blobStoreService;
+    private final StorageBackend storageBackend;
+    private final ThumbnailService thumbnailService;
+    private final HotFileCache hotFileCache;
+    private final FileMetadataCache fileMetadataCache;
+    private final MongoTemplate mongoTemplate;
+    private final FileSearchService fileSearchService;
+    private final UserUsageService userUsageService;
+
+    @Value("${cloudshare.upload.stream.max-file-size:5MB}")
+    private DataSize streamMaxFileSize;
+
+    @Value("${cloudshare.upload.parallelism:4}")
+    private int uploadParallelism;
+
     public List<FileMetadataDTO> uploadFiles(MultipartFile files[]) throws IOException {
         ProfileDocument currentProfile = profileService.getCurrentProfile();
-        List<FileMetadataDocument> savedFiles = new ArrayList<>();
 
         if (!userCreditService.hasEnoughCredits(files.length)) {
             throw new RuntimeException("Not enough credits to upload files. Please purchase more credits");
         }
 
-        Path uploadPath = Paths.get("upload").toAbsolutePath().normalize();
-        Files.createDirectories(uploadPath);
+        List<StoredBlob> written = writeConcurrently(files);
+
+        List<FileMetadataDocument> metadata = new ArrayList<>(files.length);
+        for (int i = 0; i < files.length; i++) {
+            metadata.add(buildMetadata(currentProfile, files[i].getOriginalFilename(), files[i].getContentType(), written.get(i)));
+        }
+        return persistBatch(metadata, written);
+    }
+
+    /**
+     * Parses the multipart body as it arrives and writes every file part straight into the blob
+     * store, so the bytes hit the disk once instead of going through a container temp file first.
+     */
+    public List<FileMetadataDTO> uploadFilesStreaming(HttpServletRequest request) throws IOException {
+        if (!JakartaServletFileUpload.isMultipartContent(request)) {
+            throw new RuntimeException("Request is not a multipart upload");
+        }
+
+        ProfileDocument currentProfile = profileService.getCurrentProfile();
+        int availableCredits = userCreditService.getUserCredits().getCredits();
+
+        JakartaServletFileUpload<DiskFileItem, DiskFileItemFactory> upload = new JakartaServletFileUpload<>();
+        upload.setFileSizeMax(streamMaxFileSize.toBytes());
+
+        List<StoredBlob> written = new ArrayList<>();
+        List<FileMetadataDocument> metadata = new ArrayList<>();
+        try {
+            FileItemInputIterator items = upload.getItemIterator(request);
+            while (items.hasNext()) {
+                FileItemInput item = items.next();
+                if (item.isFormField() || !"files".equals(item.getFieldName())) {
+                    continue;
+                }
+
+                if (written.size() >= availableCredits) {
+                    throw new RuntimeException("Not enough credits to upload files. Please purchase more credits");
+                }
+
+                StoredBlob stored;
+                try (InputStream in = item.getInputStream()) {
+                    stored = blobStoreService.write(in, item.getContentType());
+                }
+                written.add(stored);
+                metadata.add(buildMetadata(currentProfile, item.getName(), item.getContentType(), stored));
+            }
+        } catch (IOException | RuntimeException e) {
+            releaseQuietly(written);
+            throw e;
+        }
+        return persistBatch(metadata, written);
+    }
+
+    /**
+     * Returns the hashes from {@code sha256s} that the current user already has stored, so the
+     * client can register those through {@link #uploadByHash} without sending the bytes again.
+     * The check is scoped to the caller's own files so it cannot be used to probe other users' content.
+     */
+    public Set<String> findExistingHashes(Collection<String> sha256s) {
+        ProfileDocument currentProfile = profileService.getCurrentProfile();
+        return fileMetadataRepository.findByClerkIdAndSha256In(currentProfile.getClerkId(), sha256s).stream()
+                .map(FileMetadataDocument::getSha256)
+                .collect(Collectors.toSet());
+    }
+
+    public List<FileMetadataDTO> uploadByHash(List<FileReferenceDTO> references) throws IOException {
+        ProfileDocument currentProfile = profileService.getCurrentProfile();
+
+        if (!userCreditService.hasEnoughCredits(references.size())) {
+            throw new RuntimeException("Not enough credits to upload files. Please purchase more credits");
+        }
+
+        Set<String> owned = findExistingHashes(references.stream().map(FileReferenceDTO::getSha256).toList());
+        List<StoredBlob> acquired = new ArrayList<>(references.size());
+        List<FileMetadataDocument> metadata = new ArrayList<>(references.size());
+        for (FileReferenceDTO reference : references) {
+            StoredBlob blob = owned.contains(reference.getSha256()) ? blobStoreService.acquire(reference.getSha256()) : null;
+            if (blob == null) {
+                releaseQuietly(acquired);
+                throw new RuntimeException("Content not found, upload the file instead: " + reference.getSha256());
+            }
+            acquired.add(blob);
+            metadata.add(buildMetadata(currentProfile, reference.getName(), reference.getType(), blob));
+        }
+        return persistBatch(metadata, acquired);
+    }
 
-        for (MultipartFile file : files) {
-            String fileName = UUID.randomUUID()+"."+ StringUtils.getFilenameExtension(file.getOriginalFilename());
-            Path targetLocation = uploadPath.resolve(fileName);
-            Files.copy(file.getInputStream(), targetLocation, StandardCopyOption.REPLACE_EXISTING);
+    /**
+     * Registers a blob that was assembled outside the regular upload endpoints, such as a finished
+     * resumable upload session, as a file of the current user. The caller has already reserved the
+     * credit and still owns the blob reference and the credit if this throws.
+     */
+    public FileMetadataDTO registerStoredBlob(String name, String type, StoredBlob blob) {
+        ProfileDocument currentProfile = profileService.getCurrentProfile();
+        return persistReserved(List.of(buildMetadata(currentProfile, name, type, blob))).get(0);
+    }
 
-            FileMetadataDocument fileMetadata = FileMetadataDocument.builder()
-                    .fileLocation(targetLocation.toString())
-                    .name(file.getOriginalFilename())
-                    .size(file.getSize())
-                    .type(file.getContentType())
-                    .clerkId(currentProfile.getClerkId())
-                    .isPublic(false)
-                    .uploadedAt(LocalDateTime.now())
-                    .build();
+    /**
+     * Writes every part on its own virtual thread, with at most {@code cloudshare.upload.parallelism}
+     * copies running at once. If any part fails, the ones that did land are removed before rethrowing.
+     */
+    private List<StoredBlob> writeConcurrently(MultipartFile[] files) throws IOException {
+        Semaphore permits = new Semaphore(Math.max(1, uploadParallelism));
+        List<Future<StoredBlob>> pending = new ArrayList<>(files.length);
 
-            userCreditService.consumeCredit();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (MultipartFile file : files) {
+                pending.add(executor.submit(() -> {
+                    permits.acquire();
+                    try (InputStream in = file.getInputStream()) {
+                        return blobStoreService.write(in, file.getContentType());
+                    } finally {
+                        permits.release();
+                    }
+                }));
+            }
+        }
 
-            savedFiles.add(fileMetadataRepository.save(fileMetadata));
+        List<StoredBlob> written = new ArrayList<>(files.length);
+        Throwable failure = null;
+        for (Future<StoredBlob> future : pending) {
+            try {
+                written.add(future.get());
+            } catch (ExecutionException e) {
+                failure = failure == null ? e.getCause() : failure;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failure = failure == null ? e : failure;
+            }
         }
-        return savedFiles.stream().map(fileMetadataDocument -> mapToDTO(fileMetadataDocument))
-                .collect(Collectors.toList());
 
+        if (failure != null) {
+            releaseQuietly(written);
+            if (failure instanceof IOException ioException) {
+                throw ioException;
+            }
+            throw new RuntimeException("Error uploading files", failure);
+        }
+        return written;
+    }
+
+    /**
+     * Reserves the credits for the whole batch in one atomic step, then stores all metadata in one
+     * bulk insert. The credits are refunded and the blobs released if the insert fails.
+     */
+    private List<FileMetadataDTO> persistBatch(List<FileMetadataDocument> metadata, List<StoredBlob> written) {
+        if (metadata.isEmpty()) {
+            return List.of();
+        }
+
+        if (userCreditService.reserveCredits(metadata.size()) == null) {
+            releaseQuietly(written);
+            throw new RuntimeException("Not enough credits to upload files. Please purchase more credits");
+        }
+
+        try {
+            return persistReserved(metadata);
+        } catch (RuntimeException e) {
+            userCreditService.refundCredits(metadata.size());
+            releaseQuietly(written);
+            throw e;
+        }
+    }
+
+    /**
+     * Stores metadata whose credits are already paid for. Only the insert can fail; usage and
+     * thumbnails are best effort.
+     */
+    private List<FileMetadataDTO> persistReserved(List<FileMetadataDocument> metadata) {
+        List<FileMetadataDocument> savedFiles = fileMetadataRepository.insert(metadata);
+
+        recordUsage(() -> userUsageService.recordAdded(savedFiles));
+
+        try {
+            thumbnailService.enqueue(savedFiles);
+        } catch (RuntimeException e) {
+            //a missing thumbnail must not fail the upload
+            log.warn("Could not queue thumbnails for {} files", savedFiles.size(), e);
+        }
+
+        return savedFiles.stream().map(this::mapToDTO).collect(Collectors.toList());
+    }
+
+    private void recordUsage(Runnable update) {
+        try {
+            update.run();
+        } catch (RuntimeException e) {
+            //the file change already happened, the usage reconciliation corrects the totals
+            log.warn("Could not update storage usage", e);
+        }
+    }
+
+    private void releaseQuietly(List<StoredBlob> written) {
+        for (StoredBlob stored : written) {
+            try {
+                blobStoreService.release(stored.sha256());
+            } catch (RuntimeException e) {
+                log.warn("Could not release blob {}", stored.sha256(), e);
+            }
+        }
+    }
+
+    private FileMetadataDocument buildMetadata(ProfileDocument owner, String name, String contentType, StoredBlob stored) {
+        String nameLower = FileSearchService.normalize(name);
+        return FileMetadataDocument.builder()
+                .fileLocation(stored.key())
+                .name(name)
+                .nameLower(nameLower)
+                .nameGrams(FileSearchService.grams(nameLower))
+                .size(stored.size())
+                .sha256(stored.sha256())
+                .contentEncoding(stored.contentEncoding())
+                .type(contentType)
+                .clerkId(owner.getClerkId())
+                .isPublic(false)
+                .uploadedAt(LocalDateTime.now())
+                .build();
     }
 
     private FileMetadataDTO mapToDTO(FileMetadataDocument fileMetadataDocument) {
         return FileMetadataDTO.builder()
                 .id(fileMetadataDocument.getId())
                 .fileLocation(fileMetadataDocument.getFileLocation())
+                .thumbnailLocation(fileMetadataDocument.getThumbnailLocation())
                 .name(fileMetadataDocument.getName())
                 .size(fileMetadataDocument.getSize())
+                .sha256(fileMetadataDocument.getSha256())
+                .contentEncoding(fileMetadataDocument.getContentEncoding())
                 .type(fileMetadataDocument.getType())
                 .clerkId(fileMetadataDocument.getClerkId())
                 .isPublic(fileMetadataDocument.getIsPublic())
                 .uploadedAt(fileMetadataDocument.getUploadedAt())
                 .build();
     }
-    public List<FileMetadataDTO> getFiles() {
+    /**
+     * All files of the current user, read from a cursor as the caller consumes them. The stream
+     * holds the cursor open and has to be closed.
+     */
+    public Stream<FileMetadataDTO> streamFiles() {
         ProfileDocument currentProfile = profileService.getCurrentProfile();
-        List<FileMetadataDocument> files = fileMetadataRepository.findByClerkId(currentProfile.getClerkId());
-        return files.stream().map(this::mapToDTO).collect(Collectors.toList());
+        return fileMetadataRepository.streamByClerkId(currentProfile.getClerkId()).map(this::mapToDTO);
+    }
+
+    /**
+     * One page of the current user's files, newest first. Pages are addressed by keyset on
+     * {@code (uploadedAt, _id)} rather than by offset, so any page costs the same as the first, and
+     * only the fields the file list shows are read.
+     *
+     * @param type exact content type, or a family such as {@code image/*}
+     * @param cursor the {@code nextCursor} of the previous page, or null for the first page
+     */
+    public FilePageDTO getFilesPage(int limit, String cursor, String type, Boolean isPublic, LocalDateTime from, LocalDateTime to) {
+        ProfileDocument currentProfile = profileService.getCurrentProfile();
+
+        List<Criteria> filters = new ArrayList<>();
+        filters.add(Criteria.where("clerkId").is(currentProfile.getClerkId()));
+        if (type != null && type.endsWith("/*")) {
+            filters.add(Criteria.where("type").regex("^" + Pattern.quote(type.substring(0, type.length() - 1))));
+        } else if (type != null) {
+            filters.add(Criteria.where("type").is(type));
+        }
+        if (isPublic != null) {
+            filters.add(Criteria.where("isPublic").is(isPublic));
+        }
+        if (from != null) {
+            filters.add(Criteria.where("uploadedAt").gte(from));
+        }
+        if (to != null) {
+            filters.add(Criteria.where("uploadedAt").lt(to));
+        }
+        if (cursor != null) {
+            PageCursor after = PageCursor.decode(cursor);
+            filters.add(new Criteria().orOperator(
+                    Criteria.where("uploadedAt").lt(after.uploadedAt()),
+                    Criteria.where("uploadedAt").is(after.uploadedAt()).and("_id").lt(after.id())));
+        }
+
+        Query query = Query.query(new Criteria().andOperator(filters))
+                .with(Sort.by(Sort.Order.desc("uploadedAt"), Sort.Order.desc("_id")))
+                .limit(limit + 1);
+        query.fields().include("name", "type", "size", "isPublic", "uploadedAt", "thumbnailLocation");
+
+        List<FileMetadataDocument> files = mongoTemplate.find(query, FileMetadataDocument.class);
+        String nextCursor = null;
+        if (files.size() > limit) {
+            files = files.subList(0, limit);
+            FileMetadataDocument last = files.get(limit - 1);
+            nextCursor = new PageCursor(last.getUploadedAt(), new ObjectId(last.getId())).encode();
+        }
+        return FilePageDTO.builder()
+                .files(files.stream().map(this::mapToDTO).collect(Collectors.toList()))
+                .nextCursor(nextCursor)
+                .build();
+    }
+
+    private record PageCursor(LocalDateTime uploadedAt, ObjectId id) {
+
+        String encode() {
+            return Base64.getUrlEncoder().withoutPadding().encodeToString((uploadedAt + "|" + id.toHexString()).getBytes(StandardCharsets.UTF_8));
+        }
+
+        static PageCursor decode(String cursor) {
+            try {
+                String[] parts = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8).split("\\|");
+                return new PageCursor(LocalDateTime.parse(parts[0]), new ObjectId(parts[1]));
+            } catch (RuntimeException e) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid cursor");
+            }
+        }
+    }
+
+    public List<FileMetadataDTO> searchFiles(String q, int limit) {
+        return fileSearchService.search(q, limit).stream().map(this::mapToDTO).collect(Collectors.toList());
+    }
+
+    public FileMetadataDTO renameFile(String id, String name) {
+        if (name == null || name.isBlank()) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "File name must not be empty");
+        }
+        ProfileDocument currentProfile = profileService.getCurrentProfile();
+
+        FileMetadataDocument file = mongoTemplate.findAndModify(
+                Query.query(Criteria.where("_id").is(id).and("clerkId").is(currentProfile.getClerkId())),
+                FileSearchService.searchFields(name).set("name", name),
+                FindAndModifyOptions.options().returnNew(true),
+                FileMetadataDocument.class);
+        if (file == null) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "File not found");
+        }
+        fileMetadataCache.invalidate(id);
+        return mapToDTO(file);
     }
 
     public FileMetadataDTO getPublicFile(String id) {
-        Optional<FileMetadataDocument> fileOptional = fileMetadataRepository.findById(id);
+        Optional<FileMetadataDocument> fileOptional = fileMetadataCache.findById(id);
         if (fileOptional.isEmpty() || !fileOptional.get().getIsPublic()) {
             throw new RuntimeException("Unable to get the file");
         }
@@ -92,35 +423,56 @@ public class FileMetadataService {
     }
 
     public FileMetadataDTO getDownloadableFile(String id) {
-        FileMetadataDocument file = fileMetadataRepository.findById(id).orElseThrow(() -> new RuntimeException("File not found"));
+        FileMetadataDocument file = fileMetadataCache.findById(id).orElseThrow(() -> new RuntimeException("File not found"));
         return mapToDTO(file);
     }
 
     public void deleteFile(String id) {
         try {
             ProfileDocument currentProfile = profileService.getCurrentProfile();
-            FileMetadataDocument file = fileMetadataRepository.findById(id)
-                    .orElseThrow(() -> new RuntimeException("File not found"));
-
-            if (!file.getClerkId().equals(currentProfile.getClerkId())) {
-                throw new RuntimeException("File does not belong to current user");
+            //only the caller that actually removes the document gives up its references
+            FileMetadataDocument file = mongoTemplate.findAndRemove(
+                    Query.query(Criteria.where("_id").is(id).and("clerkId").is(currentProfile.getClerkId())),
+                    FileMetadataDocument.class);
+            if (file == null) {
+                throw new RuntimeException("File not found");
             }
 
-            Path filePath = Paths.get(file.getFileLocation());
-            Files.deleteIfExists(filePath);
+            fileMetadataCache.invalidate(id);
+            recordUsage(() -> userUsageService.recordRemoved(file));
 
-            fileMetadataRepository.deleteById(id);
+            boolean lastReference = file.getSha256() == null || blobStoreService.release(file.getSha256());
+            if (lastReference && !file.getFileLocation().equals(file.getSha256())) {
+                //written before sharding and not migrated yet
+                storageBackend.delete(file.getFileLocation());
+            }
+            if (lastReference && file.getThumbnailLocation() != null) {
+                storageBackend.delete(file.getThumbnailLocation());
+            }
+            if (lastReference) {
+                hotFileCache.invalidate(file.getFileLocation());
+                hotFileCache.invalidate(file.getThumbnailLocation());
+            }
         }catch (Exception e) {
             throw new RuntimeException("Error deleting the file");
         }
     }
 
     public FileMetadataDTO togglePublic(String id) {
-        FileMetadataDocument file = fileMetadataRepository.findById(id)
-                .orElseThrow(() -> new RuntimeException("File not found"));
-
-        file.setIsPublic(!file.getIsPublic());
-        fileMetadataRepository.save(file);
+        //flipped inside one update, so concurrent toggles each see the state the other left and the
+        //usage delta follows the value actually written
+        FileMetadataDocument file = mongoTemplate.findAndModify(
+                Query.query(Criteria.where("_id").is(id)),
+                AggregationUpdate.update().set("isPublic").toValue(BooleanOperators.Not.not("isPublic")),
+                FindAndModifyOptions.options().returnNew(true),
+                FileMetadataDocument.class);
+        if (file == null) {
+            throw new RuntimeException("File not found");
+        }
+        fileMetadataCache.invalidate(id);
+        recordUsage(() -> userUsageService.recordVisibilityChanged(file));
+        hotFileCache.invalidate(file.getFileLocation());
+        hotFileCache.invalidate(file.getThumbnailLocation());
         return mapToDTO(file);
     }
 
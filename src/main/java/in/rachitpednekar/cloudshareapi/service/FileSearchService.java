@@ -0,0 +1,148 @@
+package in.rachitpednekar.cloudshareapi.service;
+
+import in.rachitpednekar.cloudshareapi.document.FileMetadataDocument;
+import in.rachitpednekar.cloudshareapi.document.ProfileDocument;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Name search within one user's files. Every file carries its lower-cased name, for prefix lookups,
+ * and the trigrams of that name, for substring lookups; both are indexed behind {@code clerkId}, so a
+ * search reads only matching documents. Names are indexed up to {@link #MAX_INDEXED_LENGTH}
+ * characters, substrings further in are not found.
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class FileSearchService {
+
+    static final int GRAM = 3;
+    static final int MAX_INDEXED_LENGTH = 128;
+    private static final String BACKFILL_JOB = "file-search-backfill";
+
+    private final ProfileService profileService;
+    private final MongoTemplate mongoTemplate;
+    private final JobLockService jobLockService;
+
+    @Value("${cloudshare.search.backfill.enabled:true}")
+    private boolean backfillEnabled;
+
+    @Value("${cloudshare.search.backfill-batch-size:500}")
+    private int backfillBatchSize;
+
+    @Value("${cloudshare.search.backfill.lease:PT5M}")
+    private Duration backfillLease;
+
+    static String normalize(String name) {
+        return name == null ? "" : name.toLowerCase(Locale.ROOT);
+    }
+
+    static List<String> grams(String normalized) {
+        String indexed = normalized.length() > MAX_INDEXED_LENGTH ? normalized.substring(0, MAX_INDEXED_LENGTH) : normalized;
+        Set<String> grams = new LinkedHashSet<>();
+        for (int i = 0; i + GRAM <= indexed.length(); i++) {
+            grams.add(indexed.substring(i, i + GRAM));
+        }
+        return new ArrayList<>(grams);
+    }
+
+    static Update searchFields(String name) {
+        String normalized = normalize(name);
+        return new Update().set("nameLower", normalized).set("nameGrams", grams(normalized));
+    }
+
+    /**
+     * Files of the current user whose name contains {@code q}, ignoring case. Queries shorter than a
+     * trigram only match name prefixes, since anything shorter would match most files anyway.
+     */
+    public List<FileMetadataDocument> search(String q, int limit) {
+        String needle = normalize(q).strip();
+        if (needle.isEmpty()) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Search query must not be empty");
+        }
+        ProfileDocument currentProfile = profileService.getCurrentProfile();
+
+        Criteria criteria = Criteria.where("clerkId").is(currentProfile.getClerkId());
+        Query query;
+        if (needle.length() < GRAM) {
+            query = Query.query(criteria.and("nameLower").gte(needle).lt(needle + Character.MAX_VALUE))
+                    .with(Sort.by("nameLower"));
+        } else {
+            //the trigrams narrow the candidates through the index, the substring check drops false positives
+            query = Query.query(criteria.and("nameGrams").all(grams(needle))
+                    .and("nameLower").regex(Pattern.quote(needle)));
+        }
+        query.limit(limit);
+        query.fields().include("name", "type", "size", "isPublic", "uploadedAt", "thumbnailLocation");
+        return mongoTemplate.find(query, FileMetadataDocument.class);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void startBackfill() {
+        if (!backfillEnabled || jobLockService.isCompleted(BACKFILL_JOB)) {
+            return;
+        }
+        Thread.ofVirtual().name("file-search-backfill").start(this::backfill);
+    }
+
+    /**
+     * Adds the search fields to files stored before search existed. New uploads and renames set
+     * them directly, so once a run finds nothing left the job is marked completed and never runs
+     * again. It runs on one node at a time, extending its lease after every batch; a node that
+     * loses the lease stops, and the holder carries on from where the data is.
+     */
+    public long backfill() {
+        if (!jobLockService.tryLock(BACKFILL_JOB, backfillLease)) {
+            return 0;
+        }
+        Query query = Query.query(Criteria.where("nameGrams").exists(false)).limit(backfillBatchSize);
+        query.fields().include("name");
+
+        long indexed = 0;
+        try {
+            while (true) {
+                List<FileMetadataDocument> batch = mongoTemplate.find(query, FileMetadataDocument.class);
+                if (batch.isEmpty()) {
+                    jobLockService.markCompleted(BACKFILL_JOB);
+                    break;
+                }
+                BulkOperations bulk = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, FileMetadataDocument.class);
+                for (FileMetadataDocument file : batch) {
+                    bulk.updateOne(Query.query(Criteria.where("_id").is(file.getId())), searchFields(file.getName()));
+                }
+                bulk.execute();
+                indexed += batch.size();
+                if (!jobLockService.tryLock(BACKFILL_JOB, backfillLease)) {
+                    log.warn("File search backfill lost its lease after {} files", indexed);
+                    return indexed;
+                }
+            }
+        } finally {
+            jobLockService.unlock(BACKFILL_JOB);
+        }
+        if (indexed > 0) {
+            log.info("File search backfill finished, {} files indexed", indexed);
+        }
+        return indexed;
+    }
+}
@@ -0,0 +1,128 @@
+package in.rachitpednekar.cloudshareapi.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import in.rachitpednekar.cloudshareapi.storage.StorageBackend;
+import in.rachitpednekar.cloudshareapi.storage.StorageStat;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps the stored bytes of small public files in direct buffers, so popular files are served
+ * without touching the disk and without growing the heap. The cache is bounded by total bytes and
+ * Caffeine's frequency-based admission keeps out files that are only read once. A file is only read
+ * into memory once it has been asked for {@code min-requests} times within {@code candidate-window},
+ * so cold files never cost a second read or a direct buffer.
+ * <p>
+ * Entries are keyed by storage key. Evicted buffers are never freed by hand; a download still
+ * writing from one keeps it alive until it finishes.
+ */
+@Component
+@RequiredArgsConstructor
+public class HotFileCache {
+
+    private static final int MAX_CANDIDATES = 100_000;
+
+    private final StorageBackend storageBackend;
+    private final MeterRegistry meterRegistry;
+
+    @Value("${cloudshare.download.cache.max-size:256MB}")
+    private DataSize maxSize;
+
+    @Value("${cloudshare.download.cache.max-entry-size:1MB}")
+    private DataSize maxEntrySize;
+
+    @Value("${cloudshare.download.cache.min-requests:3}")
+    private int minRequests;
+
+    @Value("${cloudshare.download.cache.candidate-window:PT10M}")
+    private Duration candidateWindow;
+
+    private Cache<String, CachedFile> cache;
+    //requests seen per key that is not cached yet
+    private Cache<String, AtomicInteger> candidates;
+
+    @PostConstruct
+    void init() {
+        cache = Caffeine.newBuilder()
+                .maximumWeight(maxSize.toBytes())
+                .weigher((String key, CachedFile file) -> file.body().capacity())
+                .recordStats()
+                .build();
+        candidates = Caffeine.newBuilder()
+                .maximumSize(MAX_CANDIDATES)
+                .expireAfterWrite(candidateWindow)
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "hotFiles");
+        Gauge.builder("cloudshare.download.cache.resident", cache,
+                        c -> c.policy().eviction().map(eviction -> eviction.weightedSize().orElse(0L)).orElse(0L))
+                .baseUnit("bytes")
+                .description("Bytes of file content held in the hot file cache")
+                .register(meterRegistry);
+    }
+
+    public CachedFile get(String key) {
+        return cache.getIfPresent(key);
+    }
+
+    /**
+     * Counts a request for a whole file that is not cached, and once it has become hot reads it into
+     * a direct buffer and caches it. Returns null when the file is too large for the cache, not hot
+     * yet, or shorter than its stat claimed.
+     */
+    public CachedFile load(String key, StorageStat stat) throws IOException {
+        if (stat.size() > maxEntrySize.toBytes()) {
+            return null;
+        }
+        if (candidates.get(key, k -> new AtomicInteger()).incrementAndGet() < minRequests) {
+            return null;
+        }
+        candidates.invalidate(key);
+
+        ByteBuffer body = ByteBuffer.allocateDirect((int) stat.size());
+        Path path = storageBackend.localPath(key);
+        try (InputStream in = path == null ? storageBackend.get(key) : null;
+             ReadableByteChannel channel = path != null ? FileChannel.open(path, StandardOpenOption.READ) : Channels.newChannel(in)) {
+            while (body.hasRemaining()) {
+                if (channel.read(body) == -1) {
+                    return null;
+                }
+            }
+        }
+        body.flip();
+
+        CachedFile file = new CachedFile(body.asReadOnlyBuffer(), stat);
+        cache.put(key, file);
+        return file;
+    }
+
+    public void invalidate(String key) {
+        if (key != null) {
+            cache.invalidate(key);
+        }
+    }
+
+    public record CachedFile(ByteBuffer body, StorageStat stat) {
+
+        public ByteBuffer slice(long start, long count) {
+            return body.slice((int) start, (int) count);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package in.rachitpednekar.cloudshareapi.service;
+
+import in.rachitpednekar.cloudshareapi.document.JobLockDocument;
+import lombok.RequiredArgsConstructor;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.UUID;
+
+/**
+ * Cluster-wide locks for background jobs that must run on one node at a time. A lock is a lease:
+ * it lapses on its own if the node holding it dies, so the holder has to finish, or extend it,
+ * within the duration it asked for.
+ */
+@Service
+@RequiredArgsConstructor
+public class JobLockService {
+
+    private static final String NODE_ID = UUID.randomUUID().toString();
+
+    private final MongoTemplate mongoTemplate;
+
+    /**
+     * Takes or extends the lock on {@code job} for {@code lease}. Returns false while another
+     * node holds it.
+     */
+    public boolean tryLock(String job, Duration lease) {
+        Instant now = Instant.now();
+        Query free = Query.query(Criteria.where("_id").is(job).orOperator(
+                Criteria.where("owner").is(NODE_ID),
+                Criteria.where("lockedUntil").lt(now)));
+        try {
+            return mongoTemplate.findAndModify(free,
+                    new Update().set("owner", NODE_ID).set("lockedUntil", now.plus(lease)),
+                    FindAndModifyOptions.options().upsert(true).returnNew(true),
+                    JobLockDocument.class) != null;
+        } catch (DuplicateKeyException e) {
+            return false;
+        }
+    }
+
+    public void unlock(String job) {
+        mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(job).and("owner").is(NODE_ID)),
+                new Update().set("lockedUntil", Instant.now()), JobLockDocument.class);
+    }
+
+    public boolean isCompleted(String job) {
+        return mongoTemplate.exists(Query.query(Criteria.where("_id").is(job).and("completedAt").exists(true)), JobLockDocument.class);
+    }
+
+    public void markCompleted(String job) {
+        mongoTemplate.upsert(Query.query(Criteria.where("_id").is(job)), new Update().set("completedAt", Instant.now()), JobLockDocument.class);
+    }
+}
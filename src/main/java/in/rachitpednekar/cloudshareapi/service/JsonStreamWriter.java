@@ -0,0 +1,44 @@
+package in.rachitpednekar.cloudshareapi.service;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.stream.Stream;
+
+/**
+ * Writes a stream of values to the response as one JSON array, serializing each value as it is
+ * read, so a response over a Mongo cursor needs memory for one cursor batch rather than the whole
+ * result. Once the first bytes are out the status cannot change, so a failure half way leaves the
+ * client with a truncated array.
+ */
+@Component
+public class JsonStreamWriter {
+
+    private final ObjectMapper objectMapper;
+    private final ObjectWriter writer;
+
+    public JsonStreamWriter(ObjectMapper objectMapper) {
+        this.objectMapper = objectMapper;
+        //the servlet buffer decides when to flush, not every element
+        this.writer = objectMapper.writer().without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+    }
+
+    public void writeArray(HttpServletResponse response, Stream<?> values) throws IOException {
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        try (JsonGenerator generator = objectMapper.getFactory().createGenerator(response.getOutputStream())) {
+            generator.writeStartArray();
+            Iterator<?> iterator = values.iterator();
+            while (iterator.hasNext()) {
+                writer.writeValue(generator, iterator.next());
+            }
+            generator.writeEndArray();
+        }
+    }
+}
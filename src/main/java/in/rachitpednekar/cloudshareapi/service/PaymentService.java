@@ -9,19 +9,17 @@ import com.stripe.model.checkout.Session;
 import com.stripe.param.checkout.SessionCreateParams;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
-import com.stripe.Stripe;
+import org.springframework.web.server.ResponseStatusException;
 import java.time.LocalDateTime;
 
-import com.stripe.model.PaymentIntent;
-
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 
 import java.util.Formatter;
+import java.util.UUID;
 
 @Service
 @RequiredArgsConstructor
@@ -31,14 +29,10 @@ public class PaymentService {
     private final ProfileService profileService;
     private final UserCreditService userCreditService;
     private final PaymentTransactionRepository paymentTransactionRepository;
-
-    @Value("${stripe.key.secret}")
-    private String stripeKeySecret;
+    private final StripeGateway stripeGateway;
 
     public PaymentDTO createOrder(PaymentDTO paymentDTO) {
         try {
-            Stripe.apiKey = stripeKeySecret;
-
             ProfileDocument currentProfile = profileService.getCurrentProfile();
 
             // Build Stripe Checkout Session params
@@ -67,7 +61,7 @@ public class PaymentService {
                     .build();
 
             // Create Stripe Checkout Session
-            Session session = Session.create(params);
+            Session session = stripeGateway.createCheckoutSession(params, UUID.randomUUID().toString());
 
             // Save transaction as before...
             PaymentTransaction transaction = PaymentTransaction.builder()
@@ -91,6 +85,9 @@ public class PaymentService {
                     .message("Stripe Checkout session created successfully.")
                     .build();
 
+        } catch (ResponseStatusException e) {
+            //Stripe is unavailable or too slow, let the client see 503/504 instead of a generic failure
+            throw e;
         } catch (Exception e) {
             log.error("Error creating Stripe Checkout session", e);
             return PaymentDTO.builder()
@@ -99,77 +96,42 @@ public class PaymentService {
                     .build();
         }
     }
+    /**
+     * Reports the state of a checkout from our own records. The outcome is written by
+     * {@link StripeWebhookService} when Stripe's event arrives, so until then the payment is
+     * reported as PENDING and the client should ask again.
+     */
     public PaymentDTO verifyPayment(PaymentVerificationDTO request) {
-        try {
-            Stripe.apiKey = stripeKeySecret;
-            ProfileDocument currentProfile = profileService.getCurrentProfile();
-            String clerkId = currentProfile.getClerkId();
-
-            // Fetch the Stripe Checkout Session using sessionId
-            Session session = Session.retrieve(request.getSessionId());
-            PaymentIntent paymentIntent = PaymentIntent.retrieve(session.getPaymentIntent());
-
-            // Check payment status
-            if ("succeeded".equals(paymentIntent.getStatus())) {
-                // Determine credits based on planId
-                int creditsToAdd = 0;
-                String plan = "BASIC";
-                switch (request.getPlanId()) {
-                    case "premium":
-                        creditsToAdd = 500;
-                        plan = "PREMIUM";
-                        break;
-                    case "ultimate":
-                        creditsToAdd = 5000;
-                        plan = "ULTIMATE";
-                        break;
-                }
-                if (creditsToAdd > 0) {
-                    userCreditService.addCredits(clerkId, creditsToAdd, plan);
-                    updateTransactionStatus(session.getId(), "SUCCESS", paymentIntent.getId(), creditsToAdd);
-                    return PaymentDTO.builder()
-                            .success(true)
-                            .message("Payment verified and credits added successfully")
-                            .credits(userCreditService.getUserCredits(clerkId).getCredits())
-                            .build();
-                } else {
-                    updateTransactionStatus(session.getId(), "FAILED", paymentIntent.getId(), null);
-                    return PaymentDTO.builder()
-                            .success(false)
-                            .message("Invalid plan selected")
-                            .build();
-                }
-            } else {
-                updateTransactionStatus(session.getId(), "FAILED", paymentIntent.getId(), null);
-                return PaymentDTO.builder()
-                        .success(false)
-                        .message("Payment not successful")
-                        .build();
-            }
-        } catch (Exception e) {
+        ProfileDocument currentProfile = profileService.getCurrentProfile();
+        PaymentTransaction transaction = paymentTransactionRepository.findByOrderId(request.getSessionId());
+        if (transaction == null || !transaction.getClerkId().equals(currentProfile.getClerkId())) {
             return PaymentDTO.builder()
                     .success(false)
-                    .message("Error verifying payment: " + e.getMessage())
+                    .message("Payment not found")
                     .build();
         }
-    }
 
-
-    private void updateTransactionStatus(String stripeOrderId, String status, String stripePaymentId, Integer creditsToAdd) {
-        paymentTransactionRepository.findAll().stream()
-                .filter(t -> t.getOrderId() != null && t.getOrderId().equals(stripeOrderId))
-                .findFirst()
-                .map(transaction -> {
-                    transaction.setStatus(status);
-                    transaction.setPaymentId(stripePaymentId);
-                    if (creditsToAdd != null) {
-                        transaction.setCreditsAdded(creditsToAdd);
-                    }
-                    return paymentTransactionRepository.save(transaction);
-                })
-                .orElse(null);
+        return switch (transaction.getStatus()) {
+            case "SUCCESS" -> PaymentDTO.builder()
+                    .success(true)
+                    .status(transaction.getStatus())
+                    .message("Payment verified and credits added successfully")
+                    .credits(userCreditService.getUserCredits(currentProfile.getClerkId()).getCredits())
+                    .build();
+            case "PENDING" -> PaymentDTO.builder()
+                    .success(false)
+                    .status(transaction.getStatus())
+                    .message("Payment is still being processed")
+                    .build();
+            default -> PaymentDTO.builder()
+                    .success(false)
+                    .status(transaction.getStatus())
+                    .message("Payment not successful")
+                    .build();
+        };
     }
 
+
     /**
      * Generate HMAC SHA256 signature for payment verification
      */
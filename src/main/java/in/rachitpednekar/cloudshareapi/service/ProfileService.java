@@ -1,13 +1,18 @@
 package in.rachitpednekar.cloudshareapi.service;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import in.rachitpednekar.cloudshareapi.document.ProfileDocument;
 import in.rachitpednekar.cloudshareapi.dto.ProfileDTO;
 import in.rachitpednekar.cloudshareapi.repository.ProfileRepository;
+import jakarta.annotation.PostConstruct;
 import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.security.core.userdetails.UsernameNotFoundException;
 import org.springframework.stereotype.Service;
 
+import java.time.Duration;
 import java.time.Instant;
 
 @Service
@@ -16,6 +21,20 @@ public class ProfileService {
 
     private final ProfileRepository profileRepository;
 
+    @Value("${cloudshare.profile.cache.ttl:PT30S}")
+    private Duration cacheTtl;
+
+    //profiles by clerkId, shared between requests and dropped whenever a profile is written
+    private Cache<String, ProfileDocument> profileCache;
+
+    @PostConstruct
+    void init() {
+        profileCache = Caffeine.newBuilder()
+                .maximumSize(10000)
+                .expireAfterWrite(cacheTtl)
+                .build();
+    }
+
     public ProfileDTO createProfile(ProfileDTO profileDTO) {
 
         if (profileRepository.existsByClerkId(profileDTO.getClerkId())) {
@@ -33,6 +52,7 @@ public class ProfileService {
                 .build();
 
         profile = profileRepository.save(profile);
+        evict(profile.getClerkId());
 
         return ProfileDTO.builder()
                 .id(profile.getId())
@@ -69,6 +89,7 @@ public class ProfileService {
             }
 
             profileRepository.save(existingProfile);
+            evict(existingProfile.getClerkId());
 
             return ProfileDTO.builder()
                     .id(existingProfile.getId())
@@ -94,6 +115,7 @@ public class ProfileService {
         if (existingProfile != null) {
             profileRepository.delete(existingProfile);
         }
+        evict(clerkId);
     }
 
     public ProfileDocument getCurrentProfile() {
@@ -102,6 +124,11 @@ public class ProfileService {
         }
 
         String clerkId = SecurityContextHolder.getContext().getAuthentication().getName();
-        return profileRepository.findByClerkId(clerkId);
+        return RequestMemo.get("profile:" + clerkId, () -> profileCache.get(clerkId, profileRepository::findByClerkId));
+    }
+
+    public void evict(String clerkId) {
+        profileCache.invalidate(clerkId);
+        RequestMemo.remove("profile:" + clerkId);
     }
 }
\ No newline at end of file
@@ -0,0 +1,49 @@
+package in.rachitpednekar.cloudshareapi.service;
+
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+
+import java.util.function.Supplier;
+
+/**
+ * Remembers values for the rest of the current HTTP request. Outside a request, for example on
+ * scheduled jobs, every lookup goes to the loader.
+ */
+final class RequestMemo {
+
+    private static final String PREFIX = RequestMemo.class.getName() + ".";
+
+    private RequestMemo() {
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T> T get(String key, Supplier<T> loader) {
+        RequestAttributes attributes = RequestContextHolder.getRequestAttributes();
+        if (attributes == null) {
+            return loader.get();
+        }
+
+        Object value = attributes.getAttribute(PREFIX + key, RequestAttributes.SCOPE_REQUEST);
+        if (value == null) {
+            value = loader.get();
+            if (value != null) {
+                attributes.setAttribute(PREFIX + key, value, RequestAttributes.SCOPE_REQUEST);
+            }
+        }
+        return (T) value;
+    }
+
+    static void put(String key, Object value) {
+        RequestAttributes attributes = RequestContextHolder.getRequestAttributes();
+        if (attributes != null) {
+            attributes.setAttribute(PREFIX + key, value, RequestAttributes.SCOPE_REQUEST);
+        }
+    }
+
+    static void remove(String key) {
+        RequestAttributes attributes = RequestContextHolder.getRequestAttributes();
+        if (attributes != null) {
+            attributes.removeAttribute(PREFIX + key, RequestAttributes.SCOPE_REQUEST);
+        }
+    }
+}
@@ -0,0 +1,292 @@
+package in.rachitpednekar.cloudshareapi.service;
+
+import in.rachitpednekar.cloudshareapi.document.ProfileDocument;
+import in.rachitpednekar.cloudshareapi.document.UploadSessionDocument;
+import in.rachitpednekar.cloudshareapi.dto.FileMetadataDTO;
+import in.rachitpednekar.cloudshareapi.dto.UploadSessionDTO;
+import in.rachitpednekar.cloudshareapi.repository.UploadSessionRepository;
+import in.rachitpednekar.cloudshareapi.service.BlobStoreService.StoredBlob;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.http.HttpStatus;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * Resumable uploads: a session preallocates the target file, chunks are written at the committed
+ * offset, and completing the session turns the file into a blob and a {@code FileMetadataDocument}.
+ * Session state lives in Mongo and survives restarts, but the staging file is on the local disk of
+ * the node that created the session, so chunks and the completion have to be routed to that node
+ * (sticky on the session id). Requests that land elsewhere get a 409.
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class ResumableUploadService {
+
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private final ProfileService profileService;
+    private final UserCreditService userCreditService;
+    private final FileMetadataService fileMetadataService;
+    private final BlobStoreService blobStoreService;
+    private final UploadSessionRepository uploadSessionRepository;
+    private final MongoTemplate mongoTemplate;
+
+    @Value("${cloudshare.upload.resumable.max-file-size:5GB}")
+    private DataSize maxFileSize;
+
+    @Value("${cloudshare.upload.resumable.session-ttl:24h}")
+    private Duration sessionTtl;
+
+    @Value("${cloudshare.upload.resumable.finalize-lease:PT5M}")
+    private Duration finalizeLease;
+
+    public UploadSessionDTO createSession(UploadSessionDTO request) throws IOException {
+        ProfileDocument currentProfile = profileService.getCurrentProfile();
+
+        if (request.getSize() == null || request.getSize() <= 0 || request.getSize() > maxFileSize.toBytes()) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "File size must be between 1 byte and " + maxFileSize);
+        }
+        if (!userCreditService.hasEnoughCredits(1)) {
+            throw new RuntimeException("Not enough credits to upload files. Please purchase more credits");
+        }
+
+        Path staging = blobStoreService.newStagingFile();
+        try (RandomAccessFile file = new RandomAccessFile(staging.toFile(), "rw")) {
+            file.setLength(request.getSize());
+        }
+
+        Instant now = Instant.now();
+        UploadSessionDocument session = UploadSessionDocument.builder()
+                .clerkId(currentProfile.getClerkId())
+                .name(request.getName())
+                .type(request.getType())
+                .size(request.getSize())
+                .committedOffset(0L)
+                .status("OPEN")
+                .stagingLocation(staging.toString())
+                .createdAt(now)
+                .expiresAt(now.plus(sessionTtl))
+                .build();
+        return mapToDTO(uploadSessionRepository.save(session));
+    }
+
+    public UploadSessionDTO getSession(String id) {
+        return mapToDTO(findOwnedSession(id));
+    }
+
+    /**
+     * Writes one chunk at {@code offset}, which has to match the committed offset of the session.
+     * The offset only advances once the chunk is fully on disk, so a dropped connection just means
+     * the client asks for the committed offset again and resends from there.
+     */
+    public UploadSessionDTO writeChunk(String id, long offset, InputStream body) throws IOException {
+        UploadSessionDocument session = findOwnedSession(id);
+        if (!"OPEN".equals(session.getStatus())) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, "Upload session is " + session.getStatus());
+        }
+        if (offset != session.getCommittedOffset()) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, "Expected offset " + session.getCommittedOffset());
+        }
+        Path staging = stagingFile(session);
+
+        long position = offset;
+        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        ByteBuffer window = ByteBuffer.wrap(buffer);
+        try (FileChannel channel = FileChannel.open(staging, StandardOpenOption.WRITE)) {
+            int read;
+            while ((read = body.read(buffer)) != -1) {
+                if (position + read > session.getSize()) {
+                    throw new ResponseStatusException(HttpStatus.PAYLOAD_TOO_LARGE, "Chunk runs past the declared file size");
+                }
+                window.clear().limit(read);
+                while (window.hasRemaining()) {
+                    position += channel.write(window, position);
+                }
+            }
+        }
+
+        UploadSessionDocument updated = mongoTemplate.findAndModify(
+                Query.query(Criteria.where("_id").is(id).and("status").is("OPEN").and("committedOffset").is(offset)),
+                //an upload that is still moving does not expire
+                new Update().set("committedOffset", position).set("expiresAt", Instant.now().plus(sessionTtl)),
+                FindAndModifyOptions.options().returnNew(true),
+                UploadSessionDocument.class);
+        if (updated == null) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, "Upload session was modified concurrently");
+        }
+        return mapToDTO(updated);
+    }
+
+    /**
+     * Finishes the upload. Only the caller that moves the session into FINALIZING registers the
+     * file, so retries after a lost response get the same file back and are never charged twice.
+     * The claim is a lease: if the node finalizing dies, a retry takes over once it lapses.
+     * <p>
+     * The credit is reserved before the staging file is consumed, and the committed blob is kept
+     * on the session, so a failure in a later step leaves the session OPEN for a retry instead of
+     * losing the uploaded bytes.
+     */
+    public FileMetadataDTO complete(String id) throws IOException {
+        UploadSessionDocument session = findOwnedSession(id);
+        if ("COMPLETED".equals(session.getStatus())) {
+            return fileMetadataService.getDownloadableFile(session.getFileId());
+        }
+        if (!session.getCommittedOffset().equals(session.getSize())) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, "Upload is incomplete, committed offset is " + session.getCommittedOffset());
+        }
+
+        Instant now = Instant.now();
+        UploadSessionDocument claimed = mongoTemplate.findAndModify(
+                Query.query(Criteria.where("_id").is(id).orOperator(
+                        Criteria.where("status").is("OPEN"),
+                        Criteria.where("status").is("FINALIZING").and("finalizingUntil").lt(now))),
+                new Update().set("status", "FINALIZING")
+                        .set("finalizingUntil", now.plus(finalizeLease))
+                        .set("expiresAt", now.plus(sessionTtl)),
+                FindAndModifyOptions.options().returnNew(true),
+                UploadSessionDocument.class);
+        if (claimed == null) {
+            UploadSessionDocument current = findOwnedSession(id);
+            if ("COMPLETED".equals(current.getStatus())) {
+                return fileMetadataService.getDownloadableFile(current.getFileId());
+            }
+            throw new ResponseStatusException(HttpStatus.CONFLICT, "Upload session is " + current.getStatus());
+        }
+
+        if (!Boolean.TRUE.equals(claimed.getCreditReserved())) {
+            if (userCreditService.reserveCredits(1) == null) {
+                reopen(id);
+                throw new RuntimeException("Not enough credits to upload files. Please purchase more credits");
+            }
+            updateSession(id, new Update().set("creditReserved", true));
+        }
+
+        StoredBlob blob;
+        if (claimed.getBlobSha256() != null) {
+            blob = new StoredBlob(claimed.getBlobSha256(), claimed.getBlobSize(), claimed.getBlobContentEncoding());
+        } else {
+            Path staging;
+            try {
+                staging = stagingFile(claimed);
+            } catch (ResponseStatusException e) {
+                reopen(id);
+                throw e;
+            }
+            try {
+                blob = blobStoreService.commitFile(staging, claimed.getType());
+            } catch (IOException | RuntimeException e) {
+                userCreditService.refundCredits(1);
+                //the bytes are only gone if the staging file went with the failed commit
+                String status = Files.exists(staging) ? "OPEN" : "FAILED";
+                updateSession(id, new Update().set("status", status).set("creditReserved", false).unset("finalizingUntil"));
+                throw e;
+            }
+            updateSession(id, new Update()
+                    .set("blobSha256", blob.sha256())
+                    .set("blobSize", blob.size())
+                    .set("blobContentEncoding", blob.contentEncoding()));
+        }
+
+        FileMetadataDTO file;
+        try {
+            file = fileMetadataService.registerStoredBlob(claimed.getName(), claimed.getType(), blob);
+        } catch (RuntimeException e) {
+            //credit and blob stay with the session, the next attempt only has to register the file
+            reopen(id);
+            throw e;
+        }
+
+        updateSession(id, new Update().set("status", "COMPLETED").set("fileId", file.getId()).unset("finalizingUntil"));
+        return file;
+    }
+
+    /**
+     * Drops expired sessions. A session that never completed gives back what it was holding: its
+     * staging file, its blob reference and its credit.
+     */
+    @Scheduled(fixedDelayString = "${cloudshare.upload.resumable.purge-interval:PT1H}")
+    public void purgeExpiredSessions() {
+        for (UploadSessionDocument expired : uploadSessionRepository.findByExpiresAtBefore(Instant.now())) {
+            //removing under the expiry condition makes sure a session that was just extended is left alone
+            UploadSessionDocument session = mongoTemplate.findAndRemove(
+                    Query.query(Criteria.where("_id").is(expired.getId()).and("expiresAt").lt(Instant.now())),
+                    UploadSessionDocument.class);
+            if (session == null || "COMPLETED".equals(session.getStatus())) {
+                continue;
+            }
+            try {
+                Files.deleteIfExists(Paths.get(session.getStagingLocation()));
+            } catch (IOException e) {
+                log.warn("Could not remove staging file of expired upload session {}", session.getId(), e);
+            }
+            if (session.getBlobSha256() != null) {
+                blobStoreService.release(session.getBlobSha256());
+            }
+            if (Boolean.TRUE.equals(session.getCreditReserved())) {
+                userCreditService.refundCredits(session.getClerkId(), 1);
+            }
+        }
+    }
+
+    private Path stagingFile(UploadSessionDocument session) {
+        Path staging = Paths.get(session.getStagingLocation());
+        if (!Files.exists(staging)) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, "Upload session is held by another node");
+        }
+        return staging;
+    }
+
+    private void reopen(String id) {
+        mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(id).and("status").is("FINALIZING")),
+                new Update().set("status", "OPEN").unset("finalizingUntil"), UploadSessionDocument.class);
+    }
+
+    private void updateSession(String id, Update update) {
+        mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(id)), update, UploadSessionDocument.class);
+    }
+
+    private UploadSessionDocument findOwnedSession(String id) {
+        ProfileDocument currentProfile = profileService.getCurrentProfile();
+        UploadSessionDocument session = uploadSessionRepository.findById(id)
+                .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "Upload session not found"));
+        if (!session.getClerkId().equals(currentProfile.getClerkId())) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Upload session not found");
+        }
+        return session;
+    }
+
+    private UploadSessionDTO mapToDTO(UploadSessionDocument session) {
+        return UploadSessionDTO.builder()
+                .id(session.getId())
+                .name(session.getName())
+                .type(session.getType())
+                .size(session.getSize())
+                .committedOffset(session.getCommittedOffset())
+                .status(session.getStatus())
+                .fileId(session.getFileId())
+                .expiresAt(session.getExpiresAt())
+                .build();
+    }
+}
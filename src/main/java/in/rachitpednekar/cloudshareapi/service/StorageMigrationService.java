@@ -0,0 +1,128 @@
+package in.rachitpednekar.cloudshareapi.service;
+
+import in.rachitpednekar.cloudshareapi.document.FileMetadataDocument;
+import in.rachitpednekar.cloudshareapi.storage.StorageBackend;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Moves files that were written into the flat upload directory, and whose {@code fileLocation} is
+ * still an absolute path, into the sharded {@link StorageBackend} layout. It runs in batches next to
+ * live traffic: each file is hard-linked (or copied) to its new place before the document is
+ * switched over, and the old name is only removed once no document refers to it.
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class StorageMigrationService {
+
+    private static final String ABSOLUTE_PATH = "^(/|[A-Za-z]:[\\\\/])";
+
+    private final MongoTemplate mongoTemplate;
+    private final StorageBackend storageBackend;
+    private final FileMetadataCache fileMetadataCache;
+
+    @Value("${cloudshare.storage.migration.enabled:false}")
+    private boolean enabled;
+
+    @Value("${cloudshare.storage.migration.batch-size:500}")
+    private int batchSize;
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void startMigration() {
+        if (enabled) {
+            Thread.ofVirtual().name("storage-migration").start(this::migrateFlatFiles);
+        }
+    }
+
+    public long migrateFlatFiles() {
+        Query query = Query.query(Criteria.where("fileLocation").regex(ABSOLUTE_PATH)).limit(batchSize);
+        query.fields().include("fileLocation").include("sha256");
+
+        long migrated = 0;
+        while (true) {
+            List<FileMetadataDocument> batch = mongoTemplate.find(query, FileMetadataDocument.class);
+            if (batch.isEmpty()) {
+                break;
+            }
+
+            BulkOperations bulk = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, FileMetadataDocument.class);
+            Set<String> oldLocations = new HashSet<>();
+            try {
+                for (FileMetadataDocument file : batch) {
+                    String oldLocation = file.getFileLocation();
+                    String key = file.getSha256() != null ? file.getSha256() : Paths.get(oldLocation).getFileName().toString();
+                    relocate(oldLocation, key);
+                    bulk.updateOne(Query.query(Criteria.where("_id").is(file.getId()).and("fileLocation").is(oldLocation)),
+                            new Update().set("fileLocation", key));
+                    oldLocations.add(oldLocation);
+                }
+            } catch (IOException e) {
+                log.error("Storage migration stopped after {} files", migrated, e);
+                return migrated;
+            }
+            bulk.execute();
+            batch.forEach(file -> fileMetadataCache.invalidate(file.getId()));
+
+            for (String oldLocation : oldLocations) {
+                if (!mongoTemplate.exists(Query.query(Criteria.where("fileLocation").is(oldLocation)), FileMetadataDocument.class)) {
+                    try {
+                        storageBackend.delete(oldLocation);
+                    } catch (IOException e) {
+                        log.warn("Could not remove migrated file {}", oldLocation, e);
+                    }
+                }
+            }
+
+            migrated += batch.size();
+            log.info("Storage migration: {} files moved so far", migrated);
+        }
+
+        log.info("Storage migration finished, {} files moved", migrated);
+        return migrated;
+    }
+
+    private void relocate(String oldLocation, String key) throws IOException {
+        if (storageBackend.stat(key) != null) {
+            return;
+        }
+
+        Path source = Paths.get(oldLocation);
+        if (!Files.exists(source)) {
+            log.warn("Migrating {} without content, the file is missing on disk", oldLocation);
+            return;
+        }
+
+        Path target = storageBackend.localPath(key);
+        if (target != null) {
+            Files.createDirectories(target.getParent());
+            try {
+                Files.createLink(target, source);
+                return;
+            } catch (UnsupportedOperationException | IOException e) {
+                log.debug("Hard link for {} failed, copying instead", oldLocation, e);
+            }
+        }
+        try (InputStream in = Files.newInputStream(source)) {
+            storageBackend.put(key, in);
+        }
+    }
+}
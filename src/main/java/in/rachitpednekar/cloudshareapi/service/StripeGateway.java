@@ -0,0 +1,232 @@
+package in.rachitpednekar.cloudshareapi.service;
+
+import com.stripe.exception.ApiConnectionException;
+import com.stripe.exception.RateLimitException;
+import com.stripe.exception.StripeException;
+import com.stripe.model.checkout.Session;
+import com.stripe.net.RequestOptions;
+import com.stripe.param.checkout.SessionCreateParams;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.time.Duration;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The only way the application talks to Stripe. Calls run on a small dedicated pool, so a slow
+ * Stripe can tie up at most that many threads; when the pool and its queue are full, or the
+ * circuit breaker is open after repeated failures, callers get a 503 straight away instead of
+ * waiting. Transient failures are retried with exponential backoff under the same idempotency key,
+ * and the whole call, retries included, is bounded by {@code stripe.gateway.call-timeout}.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class StripeGateway {
+
+    private final MeterRegistry meterRegistry;
+
+    @Value("${stripe.key.secret}")
+    private String apiKey;
+
+    @Value("${stripe.gateway.threads:8}")
+    private int threads;
+
+    @Value("${stripe.gateway.queue:16}")
+    private int queueSize;
+
+    @Value("${stripe.gateway.connect-timeout:PT2S}")
+    private Duration connectTimeout;
+
+    @Value("${stripe.gateway.read-timeout:PT5S}")
+    private Duration readTimeout;
+
+    @Value("${stripe.gateway.call-timeout:PT10S}")
+    private Duration callTimeout;
+
+    @Value("${stripe.gateway.max-attempts:3}")
+    private int maxAttempts;
+
+    @Value("${stripe.gateway.failure-threshold:5}")
+    private int failureThreshold;
+
+    @Value("${stripe.gateway.open-duration:PT30S}")
+    private Duration openDuration;
+
+    private ThreadPoolExecutor executor;
+    private CircuitBreaker circuitBreaker;
+
+    @PostConstruct
+    void init() {
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueSize));
+        circuitBreaker = new CircuitBreaker(failureThreshold, openDuration.toNanos());
+    }
+
+    @PreDestroy
+    void shutdown() {
+        executor.shutdown();
+    }
+
+    public Session createCheckoutSession(SessionCreateParams params, String idempotencyKey) throws StripeException {
+        return call("checkout.session.create", () -> Session.create(params, options(idempotencyKey)));
+    }
+
+    private RequestOptions options(String idempotencyKey) {
+        return RequestOptions.builder()
+                .setApiKey(apiKey)
+                .setIdempotencyKey(idempotencyKey)
+                .setConnectTimeout((int) connectTimeout.toMillis())
+                .setReadTimeout((int) readTimeout.toMillis())
+                .setMaxNetworkRetries(0)
+                .build();
+    }
+
+    private <T> T call(String operation, StripeCall<T> stripeCall) throws StripeException {
+        if (!circuitBreaker.allowRequest()) {
+            record(operation, "rejected", 0);
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Payments are temporarily unavailable");
+        }
+
+        long start = System.nanoTime();
+        Future<T> future;
+        try {
+            future = executor.submit((Callable<T>) () -> withRetries(stripeCall));
+        } catch (RejectedExecutionException e) {
+            //Stripe was never asked, so this says nothing about its health
+            circuitBreaker.abortTrial();
+            record(operation, "rejected", 0);
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Payments are busy, please try again");
+        }
+
+        try {
+            T result = future.get(callTimeout.toMillis(), TimeUnit.MILLISECONDS);
+            circuitBreaker.onSuccess();
+            record(operation, "success", System.nanoTime() - start);
+            return result;
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            circuitBreaker.onFailure();
+            record(operation, "timeout", System.nanoTime() - start);
+            throw new ResponseStatusException(HttpStatus.GATEWAY_TIMEOUT, "Payment provider did not answer in time");
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            circuitBreaker.abortTrial();
+            record(operation, "interrupted", System.nanoTime() - start);
+            Thread.currentThread().interrupt();
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Interrupted while calling the payment provider");
+        } catch (ExecutionException e) {
+            record(operation, "error", System.nanoTime() - start);
+            if (e.getCause() instanceof StripeException stripeException) {
+                if (isTransient(stripeException)) {
+                    circuitBreaker.onFailure();
+                } else {
+                    //the request reached Stripe and was refused, Stripe itself is fine
+                    circuitBreaker.onSuccess();
+                }
+                throw stripeException;
+            }
+            circuitBreaker.onFailure();
+            throw new IllegalStateException("Stripe call failed", e.getCause());
+        }
+    }
+
+    private <T> T withRetries(StripeCall<T> stripeCall) throws StripeException, InterruptedException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return stripeCall.call();
+            } catch (StripeException e) {
+                if (attempt >= maxAttempts || !isTransient(e)) {
+                    throw e;
+                }
+                long backoff = 200L * (1L << (attempt - 1));
+                log.warn("Stripe call failed (attempt {}), retrying in {} ms: {}", attempt, backoff, e.getMessage());
+                Thread.sleep(backoff + ThreadLocalRandom.current().nextLong(backoff / 2 + 1));
+            }
+        }
+    }
+
+    private boolean isTransient(StripeException e) {
+        return e instanceof ApiConnectionException
+                || e instanceof RateLimitException
+                || (e.getStatusCode() != null && e.getStatusCode() >= 500);
+    }
+
+    private void record(String operation, String outcome, long nanos) {
+        Timer.builder("stripe.requests")
+                .tag("operation", operation)
+                .tag("outcome", outcome)
+                .register(meterRegistry)
+                .record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @FunctionalInterface
+    private interface StripeCall<T> {
+        T call() throws StripeException;
+    }
+
+    /**
+     * Opens after {@code threshold} failures in a row and lets a single trial call through once
+     * {@code openNanos} have passed; the trial's outcome closes or reopens it. Every call that was
+     * allowed has to end in {@link #onSuccess}, {@link #onFailure} or {@link #abortTrial}.
+     */
+    private static final class CircuitBreaker {
+
+        private final int threshold;
+        private final long openNanos;
+        private int consecutiveFailures;
+        private long openedAt;
+        private boolean trialInFlight;
+
+        CircuitBreaker(int threshold, long openNanos) {
+            this.threshold = threshold;
+            this.openNanos = openNanos;
+        }
+
+        synchronized boolean allowRequest() {
+            if (consecutiveFailures < threshold) {
+                return true;
+            }
+            if (!trialInFlight && System.nanoTime() - openedAt >= openNanos) {
+                trialInFlight = true;
+                return true;
+            }
+            return false;
+        }
+
+        synchronized void onSuccess() {
+            consecutiveFailures = 0;
+            trialInFlight = false;
+        }
+
+        /**
+         * Gives the trial back when the call ended without an answer from Stripe either way.
+         */
+        synchronized void abortTrial() {
+            trialInFlight = false;
+        }
+
+        synchronized void onFailure() {
+            consecutiveFailures++;
+            if (consecutiveFailures >= threshold) {
+                openedAt = System.nanoTime();
+            }
+            trialInFlight = false;
+        }
+    }
+}
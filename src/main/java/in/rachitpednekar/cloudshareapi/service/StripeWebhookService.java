@@ -0,0 +1,173 @@
+package in.rachitpednekar.cloudshareapi.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.stripe.exception.SignatureVerificationException;
+import com.stripe.net.Webhook;
+import in.rachitpednekar.cloudshareapi.document.PaymentTransaction;
+import in.rachitpednekar.cloudshareapi.document.StripeEventDocument;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Set;
+
+/**
+ * Receives Stripe webhooks and applies checkout results in the background. A verified event is
+ * stored under its Stripe id, which makes redeliveries no-ops, and is acknowledged right away.
+ * A scheduled consumer then updates the payment transaction and grants the credits of the plan
+ * that was bought. Credits are granted at most once per order, however often an event is
+ * processed: a transaction in SUCCESS has been credited, and an order between its credit grant and
+ * that status is remembered on the user's credits until the status is written.
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class StripeWebhookService {
+
+    private static final Set<String> HANDLED_TYPES = Set.of(
+            "checkout.session.completed",
+            "checkout.session.async_payment_succeeded",
+            "checkout.session.async_payment_failed",
+            "checkout.session.expired");
+
+    private final MongoTemplate mongoTemplate;
+    private final UserCreditService userCreditService;
+    private final ObjectMapper objectMapper;
+
+    @Value("${stripe.webhook.secret}")
+    private String webhookSecret;
+
+    @Value("${stripe.webhook.max-attempts:5}")
+    private int maxAttempts;
+
+    @Value("${stripe.webhook.lease:PT2M}")
+    private Duration lease;
+
+    /**
+     * Verifies and queues one webhook delivery. Returns false if the event was already queued.
+     */
+    public boolean ingest(String payload, String signatureHeader) throws SignatureVerificationException, IOException {
+        Webhook.constructEvent(payload, signatureHeader, webhookSecret);
+
+        JsonNode event = objectMapper.readTree(payload);
+        String type = event.path("type").asText();
+        if (!HANDLED_TYPES.contains(type)) {
+            return true;
+        }
+
+        JsonNode session = event.path("data").path("object");
+        Instant now = Instant.now();
+        try {
+            mongoTemplate.insert(StripeEventDocument.builder()
+                    .id(event.path("id").asText())
+                    .type(type)
+                    .sessionId(session.path("id").asText())
+                    .paymentIntentId(session.path("payment_intent").asText(null))
+                    .paymentStatus(session.path("payment_status").asText(null))
+                    .status("PENDING")
+                    .attempts(0)
+                    .receivedAt(now)
+                    .updatedAt(now)
+                    .build());
+            return true;
+        } catch (DuplicateKeyException e) {
+            return false;
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${stripe.webhook.poll-interval:PT1S}")
+    public void processPending() {
+        StripeEventDocument event;
+        while ((event = claimNext()) != null) {
+            process(event);
+        }
+    }
+
+    private StripeEventDocument claimNext() {
+        Instant now = Instant.now();
+        Query query = Query.query(new Criteria().orOperator(
+                        Criteria.where("status").is("PENDING"),
+                        Criteria.where("status").is("PROCESSING").and("updatedAt").lt(now.minus(lease))))
+                .with(Sort.by("updatedAt"));
+        return mongoTemplate.findAndModify(query,
+                new Update().set("status", "PROCESSING").set("updatedAt", now).inc("attempts", 1),
+                FindAndModifyOptions.options().returnNew(true),
+                StripeEventDocument.class);
+    }
+
+    private void process(StripeEventDocument event) {
+        Query eventQuery = Query.query(Criteria.where("_id").is(event.getId()));
+        try {
+            apply(event);
+            mongoTemplate.updateFirst(eventQuery, new Update().set("status", "DONE").set("updatedAt", Instant.now()), StripeEventDocument.class);
+        } catch (RuntimeException e) {
+            boolean retry = event.getAttempts() < maxAttempts;
+            log.warn("Stripe event {} failed (attempt {})", event.getId(), event.getAttempts(), e);
+            mongoTemplate.updateFirst(eventQuery, new Update()
+                    .set("status", retry ? "PENDING" : "FAILED")
+                    .set("lastError", String.valueOf(e.getMessage()))
+                    .set("updatedAt", Instant.now()), StripeEventDocument.class);
+        }
+    }
+
+    private void apply(StripeEventDocument event) {
+        PaymentTransaction transaction = mongoTemplate.findOne(Query.query(Criteria.where("orderId").is(event.getSessionId())), PaymentTransaction.class);
+        if (transaction == null) {
+            log.warn("Stripe event {} refers to unknown checkout session {}", event.getId(), event.getSessionId());
+            return;
+        }
+        if ("SUCCESS".equals(transaction.getStatus())) {
+            //credited already, the order may still be remembered if the last run stopped before forgetting it
+            userCreditService.forgetOrder(transaction.getClerkId(), transaction.getOrderId());
+            return;
+        }
+
+        Query pending = Query.query(Criteria.where("orderId").is(event.getSessionId()).and("status").is("PENDING"));
+        boolean failed = event.getType().endsWith("async_payment_failed") || event.getType().endsWith("expired");
+        if (failed) {
+            mongoTemplate.updateFirst(pending, new Update().set("status", "FAILED").set("paymentId", event.getPaymentIntentId()), PaymentTransaction.class);
+            return;
+        }
+        if (!"paid".equals(event.getPaymentStatus()) && !"no_payment_required".equals(event.getPaymentStatus())) {
+            //delayed payment methods complete the session first and report the payment later
+            return;
+        }
+
+        int creditsToAdd;
+        String plan;
+        switch (String.valueOf(transaction.getPlanId()).toLowerCase()) {
+            case "premium" -> {
+                creditsToAdd = 500;
+                plan = "PREMIUM";
+            }
+            case "ultimate" -> {
+                creditsToAdd = 5000;
+                plan = "ULTIMATE";
+            }
+            default -> {
+                mongoTemplate.updateFirst(pending, new Update().set("status", "FAILED").set("paymentId", event.getPaymentIntentId()), PaymentTransaction.class);
+                return;
+            }
+        }
+
+        userCreditService.addCreditsForOrder(transaction.getClerkId(), transaction.getOrderId(), creditsToAdd, plan);
+        mongoTemplate.updateFirst(Query.query(Criteria.where("orderId").is(event.getSessionId())), new Update()
+                .set("status", "SUCCESS")
+                .set("paymentId", event.getPaymentIntentId())
+                .set("creditsAdded", creditsToAdd), PaymentTransaction.class);
+        userCreditService.forgetOrder(transaction.getClerkId(), transaction.getOrderId());
+    }
+}
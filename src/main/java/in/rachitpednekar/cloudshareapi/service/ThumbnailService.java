@@ -0,0 +1,241 @@
+package in.rachitpednekar.cloudshareapi.service;
+
+import in.rachitpednekar.cloudshareapi.document.FileMetadataDocument;
+import in.rachitpednekar.cloudshareapi.document.ThumbnailJobDocument;
+import in.rachitpednekar.cloudshareapi.storage.StorageBackend;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Generates fixed-size JPEG thumbnails for image uploads in the background. Jobs are queued in the
+ * {@code thumbnail_jobs} collection, so they survive restarts and are shared between nodes. Each
+ * node claims a job only after reserving a slot in its bounded worker pool. A job left RUNNING past its
+ * lease, for example because its node died, is picked up again.
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class ThumbnailService {
+
+    private static final Set<String> SUPPORTED_TYPES = Set.of("image/jpeg", "image/png", "image/gif", "image/bmp", "image/tiff");
+
+    private final MongoTemplate mongoTemplate;
+    private final StorageBackend storageBackend;
+    private final FileMetadataCache fileMetadataCache;
+
+    @Value("${cloudshare.thumbnails.size:256}")
+    private int thumbnailSize;
+
+    @Value("${cloudshare.thumbnails.workers:2}")
+    private int workerCount;
+
+    @Value("${cloudshare.thumbnails.max-attempts:3}")
+    private int maxAttempts;
+
+    @Value("${cloudshare.thumbnails.lease:PT5M}")
+    private Duration lease;
+
+    @Value("${cloudshare.thumbnails.max-source-size:50MB}")
+    private DataSize maxSourceSize;
+
+    private ThreadPoolExecutor workers;
+    //one permit per running or queued job, taken before a job is claimed
+    private Semaphore slots;
+
+    @PostConstruct
+    void startWorkers() {
+        workers = new ThreadPoolExecutor(workerCount, workerCount, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(workerCount));
+        slots = new Semaphore(workerCount * 2);
+    }
+
+    @PreDestroy
+    void stopWorkers() {
+        workers.shutdown();
+    }
+
+    public static String keyFor(FileMetadataDocument file) {
+        return (file.getSha256() != null ? file.getSha256() : file.getId()) + "-thumb";
+    }
+
+    public void enqueue(List<FileMetadataDocument> files) {
+        Instant now = Instant.now();
+        List<ThumbnailJobDocument> jobs = files.stream()
+                .filter(this::isSupported)
+                .map(file -> ThumbnailJobDocument.builder()
+                        .fileId(file.getId())
+                        .status("PENDING")
+                        .attempts(0)
+                        .createdAt(now)
+                        .updatedAt(now)
+                        .build())
+                .toList();
+        if (!jobs.isEmpty()) {
+            mongoTemplate.insertAll(jobs);
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${cloudshare.thumbnails.poll-interval:PT2S}")
+    public void dispatch() {
+        while (slots.tryAcquire()) {
+            ThumbnailJobDocument job;
+            try {
+                job = claimNext();
+            } catch (RuntimeException e) {
+                slots.release();
+                throw e;
+            }
+            if (job == null) {
+                slots.release();
+                return;
+            }
+            try {
+                workers.execute(() -> {
+                    try {
+                        process(job);
+                    } finally {
+                        slots.release();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                //the pool is shutting down, hand the job back rather than leave it RUNNING until its lease ends
+                slots.release();
+                unclaim(job);
+                return;
+            }
+        }
+    }
+
+    private ThumbnailJobDocument claimNext() {
+        Instant now = Instant.now();
+        Query query = Query.query(new Criteria().orOperator(
+                        Criteria.where("status").is("PENDING"),
+                        Criteria.where("status").is("RUNNING").and("updatedAt").lt(now.minus(lease))))
+                .with(Sort.by("updatedAt"));
+        return mongoTemplate.findAndModify(query,
+                new Update().set("status", "RUNNING").set("updatedAt", now).inc("attempts", 1),
+                FindAndModifyOptions.options().returnNew(true),
+                ThumbnailJobDocument.class);
+    }
+
+    private void unclaim(ThumbnailJobDocument job) {
+        //matching the claim time leaves the job alone if another node has claimed it since
+        mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(job.getId())
+                        .and("status").is("RUNNING").and("updatedAt").is(job.getUpdatedAt())),
+                new Update().set("status", "PENDING").set("updatedAt", Instant.now()).inc("attempts", -1),
+                ThumbnailJobDocument.class);
+    }
+
+    private void process(ThumbnailJobDocument job) {
+        Query jobQuery = Query.query(Criteria.where("_id").is(job.getId()));
+        try {
+            FileMetadataDocument file = mongoTemplate.findById(job.getFileId(), FileMetadataDocument.class);
+            if (file != null) {
+                String key = keyFor(file);
+                if (storageBackend.stat(key) == null) {
+                    storageBackend.put(key, new ByteArrayInputStream(render(file)));
+                }
+                mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(file.getId())),
+                        new Update().set("thumbnailLocation", key), FileMetadataDocument.class);
+                fileMetadataCache.invalidate(file.getId());
+            }
+            mongoTemplate.remove(jobQuery, ThumbnailJobDocument.class);
+        } catch (Exception e) {
+            boolean retry = !(e instanceof IllegalArgumentException) && job.getAttempts() < maxAttempts;
+            log.warn("Thumbnail job {} for file {} failed (attempt {})", job.getId(), job.getFileId(), job.getAttempts(), e);
+            mongoTemplate.updateFirst(jobQuery, new Update()
+                    .set("status", retry ? "PENDING" : "FAILED")
+                    .set("lastError", String.valueOf(e.getMessage()))
+                    .set("updatedAt", Instant.now()), ThumbnailJobDocument.class);
+        }
+    }
+
+    /**
+     * Decodes the image with source subsampling, so a large photo is never fully expanded in memory,
+     * then scales it to fit a {@code thumbnailSize} square on a white background.
+     */
+    private byte[] render(FileMetadataDocument file) throws IOException {
+        if (file.getSize() != null && file.getSize() > maxSourceSize.toBytes()) {
+            throw new IllegalArgumentException("Image is too large for a thumbnail");
+        }
+
+        BufferedImage source;
+        try (InputStream raw = storageBackend.get(file.getFileLocation());
+             InputStream in = BlobStoreService.GZIP.equals(file.getContentEncoding()) ? new GZIPInputStream(raw) : raw;
+             ImageInputStream images = ImageIO.createImageInputStream(in)) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(images);
+            if (!readers.hasNext()) {
+                throw new IllegalArgumentException("Unsupported image format");
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(images, true, true);
+                int step = Math.max(1, Math.max(reader.getWidth(0), reader.getHeight(0)) / (thumbnailSize * 2));
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(step, step, 0, 0);
+                source = reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+
+        double scale = Math.min(1.0, (double) thumbnailSize / Math.max(source.getWidth(), source.getHeight()));
+        int width = Math.max(1, (int) Math.round(source.getWidth() * scale));
+        int height = Math.max(1, (int) Math.round(source.getHeight() * scale));
+
+        BufferedImage thumbnail = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = thumbnail.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.setColor(Color.WHITE);
+            graphics.fillRect(0, 0, width, height);
+            graphics.drawImage(source, 0, 0, width, height, null);
+        } finally {
+            graphics.dispose();
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(thumbnail, "jpg", out);
+        return out.toByteArray();
+    }
+
+    private boolean isSupported(FileMetadataDocument file) {
+        return file.getType() != null && SUPPORTED_TYPES.contains(file.getType().split(";")[0].trim().toLowerCase(Locale.ROOT));
+    }
+}
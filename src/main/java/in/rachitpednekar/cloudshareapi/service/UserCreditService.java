@@ -1,18 +1,48 @@
 package in.rachitpednekar.cloudshareapi.service;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import in.rachitpednekar.cloudshareapi.document.UserCredits;
 import in.rachitpednekar.cloudshareapi.repository.UserCreditsRepository;
+import jakarta.annotation.PostConstruct;
 import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.stereotype.Service;
 
+import java.time.Duration;
+
 @Service
 @RequiredArgsConstructor
 public class UserCreditService {
 
     private final UserCreditsRepository userCreditsRepository;
     private final ProfileService profileService;
+    private final MongoTemplate mongoTemplate;
+
+    @Value("${cloudshare.credits.cache.ttl:PT30S}")
+    private Duration cacheTtl;
+
+    //balances by clerkId for display and prechecks; every change goes to the repository and then replaces the entry
+    private Cache<String, UserCredits> creditsCache;
+
+    @PostConstruct
+    void init() {
+        creditsCache = Caffeine.newBuilder()
+                .maximumSize(10000)
+                .expireAfterWrite(cacheTtl)
+                .build();
+    }
 
     public UserCredits createInitialCredits(String clerkId) {
+        return remember(insertInitialCredits(clerkId));
+    }
+
+    private UserCredits insertInitialCredits(String clerkId) {
         UserCredits userCredits = UserCredits.builder()
                 .clerkId(clerkId)
                 .credits(5)
@@ -22,8 +52,7 @@ public class UserCreditService {
     }
 
     public UserCredits getUserCredits(String clerkId) {
-        return userCreditsRepository.findByClerkId(clerkId)
-                .orElseGet(() -> createInitialCredits(clerkId));
+        return RequestMemo.get("credits:" + clerkId, () -> creditsCache.get(clerkId, this::loadCredits));
     }
 
     public UserCredits getUserCredits() {
@@ -37,23 +66,89 @@ public class UserCreditService {
     }
 
     public UserCredits consumeCredit() {
-        UserCredits userCredits = getUserCredits();
+        return reserveCredits(1);
+    }
+
+    /**
+     * Takes {@code count} credits from the current user in one conditional update, so concurrent
+     * uploads can never spend more than the balance. Returns the new balance, or null if there
+     * were not enough credits.
+     */
+    public UserCredits reserveCredits(int count) {
+        String clerkId = profileService.getCurrentProfile().getClerkId();
+        Query query = Query.query(Criteria.where("clerkId").is(clerkId).and("credits").gte(count));
 
-        if (userCredits.getCredits() <= 0) {
-            return null;
+        UserCredits userCredits = mongoTemplate.findAndModify(query, new Update().inc("credits", -count),
+                FindAndModifyOptions.options().returnNew(true), UserCredits.class);
+        if (userCredits == null && !userCreditsRepository.existsByClerkId(clerkId)) {
+            insertInitialCredits(clerkId);
+            userCredits = mongoTemplate.findAndModify(query, new Update().inc("credits", -count),
+                    FindAndModifyOptions.options().returnNew(true), UserCredits.class);
         }
+        return userCredits != null ? remember(userCredits) : null;
+    }
 
-        userCredits.setCredits(userCredits.getCredits() - 1);
-        return userCreditsRepository.save(userCredits);
+    /**
+     * Gives back credits taken by {@link #reserveCredits(int)} for files that were not stored after all.
+     */
+    public UserCredits refundCredits(int count) {
+        return refundCredits(profileService.getCurrentProfile().getClerkId(), count);
+    }
+
+    public UserCredits refundCredits(String clerkId, int count) {
+        return increment(clerkId, count, new Update());
     }
 
     public UserCredits addCredits(String clerkId, Integer creditsToAdd, String plan) {
-        UserCredits userCredits = userCreditsRepository.findByClerkId(clerkId)
-                .orElseGet(() -> createInitialCredits(clerkId));
+        return increment(clerkId, creditsToAdd, new Update().set("plan", plan));
+    }
 
-        userCredits.setCredits(userCredits.getCredits() + creditsToAdd);
-        userCredits.setPlan(plan);
-        return userCreditsRepository.save(userCredits);
+    /**
+     * Adds the credits of a paid order. The order id is recorded in the same update, so applying
+     * the same order again changes nothing and returns null. Once the order is marked credited on
+     * its payment transaction, {@link #forgetOrder} drops the id again, so the list only holds
+     * orders in flight.
+     */
+    public UserCredits addCreditsForOrder(String clerkId, String orderId, int creditsToAdd, String plan) {
+        Query query = Query.query(Criteria.where("clerkId").is(clerkId).and("appliedOrderIds").ne(orderId));
+        Update update = new Update()
+                .inc("credits", creditsToAdd)
+                .set("plan", plan)
+                .push("appliedOrderIds", orderId);
+
+        UserCredits userCredits = mongoTemplate.findAndModify(query, update, FindAndModifyOptions.options().returnNew(true), UserCredits.class);
+        if (userCredits == null && !userCreditsRepository.existsByClerkId(clerkId)) {
+            insertInitialCredits(clerkId);
+            userCredits = mongoTemplate.findAndModify(query, update, FindAndModifyOptions.options().returnNew(true), UserCredits.class);
+        }
+        return userCredits != null ? remember(userCredits) : null;
     }
-}
 
+    public void forgetOrder(String clerkId, String orderId) {
+        mongoTemplate.updateFirst(Query.query(Criteria.where("clerkId").is(clerkId)),
+                new Update().pull("appliedOrderIds", orderId), UserCredits.class);
+    }
+
+    private UserCredits increment(String clerkId, int count, Update update) {
+        Query query = Query.query(Criteria.where("clerkId").is(clerkId));
+        update.inc("credits", count);
+
+        UserCredits userCredits = mongoTemplate.findAndModify(query, update, FindAndModifyOptions.options().returnNew(true), UserCredits.class);
+        if (userCredits == null) {
+            insertInitialCredits(clerkId);
+            userCredits = mongoTemplate.findAndModify(query, update, FindAndModifyOptions.options().returnNew(true), UserCredits.class);
+        }
+        return remember(userCredits);
+    }
+
+    private UserCredits loadCredits(String clerkId) {
+        return userCreditsRepository.findByClerkId(clerkId)
+                .orElseGet(() -> insertInitialCredits(clerkId));
+    }
+
+    private UserCredits remember(UserCredits userCredits) {
+        creditsCache.put(userCredits.getClerkId(), userCredits);
+        RequestMemo.put("credits:" + userCredits.getClerkId(), userCredits);
+        return userCredits;
+    }
+}
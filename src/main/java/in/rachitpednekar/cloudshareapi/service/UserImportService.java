@@ -0,0 +1,71 @@
+package in.rachitpednekar.cloudshareapi.service;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Backfills profiles and credits from a Clerk user export. The export is read as a stream, either
+ * a JSON array or newline-delimited JSON of Clerk user objects, and written in batches of bulk
+ * upserts, so memory use does not depend on the size of the export. Re-running an import updates
+ * the same profiles and never grants initial credits twice.
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class UserImportService {
+
+    private final ClerkEventService clerkEventService;
+    private final ObjectMapper objectMapper;
+
+    @Value("${cloudshare.admin.import.batch-size:1000}")
+    private int batchSize;
+
+    public ImportProgress importUsers(InputStream in, Consumer<ImportProgress> progress) throws IOException {
+        long processed = 0;
+        long failed = 0;
+        List<JsonNode> batch = new ArrayList<>(batchSize);
+
+        try (JsonParser parser = objectMapper.getFactory().createParser(in)) {
+            JsonToken token = parser.nextToken();
+            boolean array = token == JsonToken.START_ARRAY;
+            if (array) {
+                token = parser.nextToken();
+            }
+
+            while (token != null && token != JsonToken.END_ARRAY) {
+                batch.add(objectMapper.readTree(parser));
+                if (batch.size() == batchSize) {
+                    failed += clerkEventService.upsertUsers(batch);
+                    processed += batch.size();
+                    batch.clear();
+                    progress.accept(new ImportProgress(processed, failed, false));
+                }
+                token = parser.nextToken();
+            }
+        }
+
+        if (!batch.isEmpty()) {
+            failed += clerkEventService.upsertUsers(batch);
+            processed += batch.size();
+        }
+        ImportProgress result = new ImportProgress(processed, failed, true);
+        progress.accept(result);
+        log.info("User import finished: {} users, {} failed writes", processed, failed);
+        return result;
+    }
+
+    public record ImportProgress(long processed, long failed, boolean done) {
+    }
+}
@@ -0,0 +1,272 @@
+package in.rachitpednekar.cloudshareapi.service;
+
+import in.rachitpednekar.cloudshareapi.document.FileMetadataDocument;
+import in.rachitpednekar.cloudshareapi.document.UserUsage;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.AggregationOperation;
+import org.springframework.data.mongodb.core.aggregation.AggregationOptions;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+/**
+ * Storage usage per user, kept in one {@link UserUsage} document that uploads, deletes and
+ * visibility changes adjust with {@code $inc}, so reading it never touches the file collection.
+ * A scheduled reconciliation recomputes every document from the files to correct drift, such as
+ * an increment lost when a request failed between its two writes. It runs on one node at a time,
+ * renewing its lease after every batch, and stops if another node has taken the lease over.
+ * <p>
+ * A document first created by an increment is marked unreconciled, since the user may have had
+ * files before usage was tracked, and is computed in full when it is first read.
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class UserUsageService {
+
+    private static final int RECONCILE_BATCH_SIZE = 500;
+    private static final String RECONCILE_JOB = "usage-reconcile";
+
+    private final MongoTemplate mongoTemplate;
+    private final JobLockService jobLockService;
+
+    @Value("${cloudshare.usage.reconcile.enabled:true}")
+    private boolean reconcileEnabled;
+
+    @Value("${cloudshare.usage.reconcile.lease:PT1H}")
+    private Duration reconcileLease;
+
+    public void recordAdded(List<FileMetadataDocument> files) {
+        Map<String, Update> updates = new HashMap<>();
+        for (FileMetadataDocument file : files) {
+            apply(updates.computeIfAbsent(file.getClerkId(), clerkId -> incremental()), file, 1);
+        }
+        updates.forEach((clerkId, update) -> mongoTemplate.upsert(byClerkId(clerkId), update, UserUsage.class));
+    }
+
+    public void recordRemoved(FileMetadataDocument file) {
+        Update update = incremental();
+        apply(update, file, -1);
+        mongoTemplate.upsert(byClerkId(file.getClerkId()), update, UserUsage.class);
+    }
+
+    public void recordVisibilityChanged(FileMetadataDocument file) {
+        int sign = Boolean.TRUE.equals(file.getIsPublic()) ? 1 : -1;
+        mongoTemplate.upsert(byClerkId(file.getClerkId()),
+                incremental().inc("publicCount", sign).inc("publicBytes", sign * sizeOf(file)),
+                UserUsage.class);
+    }
+
+    /**
+     * The usage of {@code clerkId}. A document that was never computed from the files, or is
+     * missing, is computed before it is returned.
+     */
+    public UserUsage getUsage(String clerkId) {
+        UserUsage usage = mongoTemplate.findById(clerkId, UserUsage.class);
+        if (usage == null || !Boolean.TRUE.equals(usage.getReconciled())) {
+            Instant now = Instant.now();
+            if (reconcile(Criteria.where("clerkId").is(clerkId), now) == 0) {
+                mongoTemplate.upsert(byClerkId(clerkId), totalsUpdate(new Totals(), now), UserUsage.class);
+            }
+            usage = mongoTemplate.findById(clerkId, UserUsage.class);
+        }
+        return usage != null ? usage : emptyUsage(clerkId);
+    }
+
+    @Scheduled(initialDelayString = "${cloudshare.usage.reconcile.initial-delay:PT10M}",
+            fixedDelayString = "${cloudshare.usage.reconcile.interval:PT6H}")
+    public void reconcileAll() {
+        if (!reconcileEnabled || !jobLockService.tryLock(RECONCILE_JOB, reconcileLease)) {
+            return;
+        }
+        try {
+            //documents that exist now and are neither rewritten by the aggregation nor touched by an
+            //increment meanwhile belong to users without files
+            String runId = UUID.randomUUID().toString();
+            mongoTemplate.updateMulti(new Query(), new Update().set("pendingRun", runId), UserUsage.class);
+
+            Instant runStart = Instant.now();
+            long users = reconcile(null, runStart);
+            if (!jobLockService.tryLock(RECONCILE_JOB, reconcileLease)) {
+                //the documents still marked may have been re-marked by the node that took over
+                log.warn("Usage reconciliation lost its lease after {} users", users);
+                return;
+            }
+
+            long emptied = mongoTemplate.updateMulti(Query.query(Criteria.where("pendingRun").is(runId)),
+                    totalsUpdate(new Totals(), runStart),
+                    UserUsage.class).getModifiedCount();
+            log.info("Usage reconciliation finished, {} users recomputed, {} reset to empty", users, emptied);
+        } catch (LeaseLostException e) {
+            log.warn("Usage reconciliation lost its lease, stopping");
+        } finally {
+            jobLockService.unlock(RECONCILE_JOB);
+        }
+    }
+
+    /**
+     * Groups the files by user, type and visibility and writes the folded totals over the usage
+     * documents. Increments landing between the aggregation and the write are overwritten and
+     * corrected by the next run. A run over all users renews the job lease after every batch.
+     */
+    private long reconcile(Criteria filter, Instant runStart) {
+        List<AggregationOperation> stages = new ArrayList<>();
+        if (filter != null) {
+            stages.add(Aggregation.match(filter));
+        }
+        stages.add(Aggregation.group("clerkId", "type", "isPublic").count().as("files").sum("size").as("bytes"));
+        stages.add(Aggregation.sort(Sort.Direction.ASC, "clerkId"));
+        Aggregation aggregation = Aggregation.newAggregation(stages)
+                .withOptions(AggregationOptions.builder().allowDiskUse(true).build());
+
+        BulkOperations bulk = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, UserUsage.class);
+        int pending = 0;
+        long users = 0;
+        String currentUser = null;
+        Totals totals = new Totals();
+        try (Stream<Document> rows = mongoTemplate.aggregateStream(aggregation, FileMetadataDocument.class, Document.class)) {
+            for (Document row : (Iterable<Document>) rows::iterator) {
+                Document group = row.get("_id", Document.class);
+                String clerkId = group.getString("clerkId");
+                if (clerkId == null) {
+                    continue;
+                }
+                if (!clerkId.equals(currentUser)) {
+                    if (currentUser != null) {
+                        bulk.upsert(byClerkId(currentUser), totalsUpdate(totals, runStart));
+                        users++;
+                        if (++pending == RECONCILE_BATCH_SIZE) {
+                            bulk.execute();
+                            if (filter == null && !jobLockService.tryLock(RECONCILE_JOB, reconcileLease)) {
+                                throw new LeaseLostException();
+                            }
+                            bulk = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, UserUsage.class);
+                            pending = 0;
+                        }
+                    }
+                    currentUser = clerkId;
+                    totals = new Totals();
+                }
+                totals.add(typeFamily(group.getString("type")), Boolean.TRUE.equals(group.getBoolean("isPublic")),
+                        ((Number) row.get("files")).longValue(), ((Number) row.get("bytes")).longValue());
+            }
+        }
+        if (currentUser != null) {
+            bulk.upsert(byClerkId(currentUser), totalsUpdate(totals, runStart));
+            users++;
+            pending++;
+        }
+        if (pending > 0) {
+            bulk.execute();
+        }
+        return users;
+    }
+
+    /**
+     * The part of a content type before the slash, which is what usage is broken down by. Map keys
+     * become field paths, so anything that is not a plain token is counted as other.
+     */
+    static String typeFamily(String contentType) {
+        if (contentType == null) {
+            return "other";
+        }
+        int slash = contentType.indexOf('/');
+        String family = (slash >= 0 ? contentType.substring(0, slash) : contentType).trim().toLowerCase(Locale.ROOT);
+        return family.matches("[a-z0-9+-]{1,32}") ? family : "other";
+    }
+
+    private static void apply(Update update, FileMetadataDocument file, int sign) {
+        long size = sizeOf(file);
+        String family = typeFamily(file.getType());
+        update.inc("fileCount", sign)
+                .inc("totalBytes", sign * size)
+                .inc("filesByType." + family, sign)
+                .inc("bytesByType." + family, sign * size);
+        if (Boolean.TRUE.equals(file.getIsPublic())) {
+            update.inc("publicCount", sign).inc("publicBytes", sign * size);
+        }
+    }
+
+    private static long sizeOf(FileMetadataDocument file) {
+        return file.getSize() != null ? file.getSize() : 0L;
+    }
+
+    private static Query byClerkId(String clerkId) {
+        return Query.query(Criteria.where("_id").is(clerkId));
+    }
+
+    private static Update incremental() {
+        //an increment proves the document is live, and cannot stand in for a full computation
+        return new Update().setOnInsert("reconciled", false).unset("pendingRun");
+    }
+
+    private static Update totalsUpdate(Totals totals, Instant runStart) {
+        return new Update()
+                .set("reconciled", true)
+                .unset("pendingRun")
+                .set("fileCount", totals.fileCount)
+                .set("totalBytes", totals.totalBytes)
+                .set("publicCount", totals.publicCount)
+                .set("publicBytes", totals.publicBytes)
+                .set("filesByType", totals.filesByType)
+                .set("bytesByType", totals.bytesByType)
+                .set("reconciledAt", runStart);
+    }
+
+    private static UserUsage emptyUsage(String clerkId) {
+        return UserUsage.builder()
+                .clerkId(clerkId)
+                .fileCount(0L)
+                .totalBytes(0L)
+                .publicCount(0L)
+                .publicBytes(0L)
+                .filesByType(Map.of())
+                .bytesByType(Map.of())
+                .build();
+    }
+
+    private static final class LeaseLostException extends RuntimeException {
+        LeaseLostException() {
+            super(null, null, false, false);
+        }
+    }
+
+    private static final class Totals {
+        long fileCount;
+        long totalBytes;
+        long publicCount;
+        long publicBytes;
+        final Map<String, Long> filesByType = new HashMap<>();
+        final Map<String, Long> bytesByType = new HashMap<>();
+
+        void add(String family, boolean isPublic, long files, long bytes) {
+            fileCount += files;
+            totalBytes += bytes;
+            if (isPublic) {
+                publicCount += files;
+                publicBytes += bytes;
+            }
+            filesByType.merge(family, files, Long::sum);
+            bytesByType.merge(family, bytes, Long::sum);
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package in.rachitpednekar.cloudshareapi.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+
+/**
+ * Where file bytes live. Callers only deal in opaque keys; {@code FileMetadataDocument.fileLocation}
+ * holds the key and the backend decides how it maps onto its own layout.
+ */
+public interface StorageBackend {
+
+    /**
+     * Moves a local file into storage under {@code key}, replacing anything already stored there.
+     */
+    void put(String key, Path source) throws IOException;
+
+    void put(String key, InputStream content) throws IOException;
+
+    InputStream get(String key) throws IOException;
+
+    InputStream get(String key, long offset, long length) throws IOException;
+
+    /**
+     * Returns {@code null} when nothing is stored under {@code key}.
+     */
+    StorageStat stat(String key) throws IOException;
+
+    boolean delete(String key) throws IOException;
+
+    /**
+     * The file backing {@code key} when the backend keeps it on the local file system, so callers
+     * can hand it to the kernel for sendfile. Remote backends return {@code null}.
+     */
+    default Path localPath(String key) {
+        return null;
+    }
+}
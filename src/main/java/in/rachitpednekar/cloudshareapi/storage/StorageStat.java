@@ -0,0 +1,6 @@
+package in.rachitpednekar.cloudshareapi.storage;
+
+import java.time.Instant;
+
+public record StorageStat(long size, Instant lastModified) {
+}
@@ -0,0 +1,165 @@
+package in.rachitpednekar.cloudshareapi.repository;
+
+import com.mongodb.ExplainVerbosity;
+import com.mongodb.client.FindIterable;
+import in.rachitpednekar.cloudshareapi.document.FileMetadataDocument;
+import in.rachitpednekar.cloudshareapi.document.PaymentTransaction;
+import in.rachitpednekar.cloudshareapi.document.ProfileDocument;
+import in.rachitpednekar.cloudshareapi.document.UploadSessionDocument;
+import in.rachitpednekar.cloudshareapi.document.UserCredits;
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.data.mongo.DataMongoTest;
+import org.springframework.boot.testcontainers.service.connection.ServiceConnection;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.IndexOperations;
+import org.springframework.data.mongodb.core.index.IndexResolver;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+import org.testcontainers.containers.MongoDBContainer;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+import java.util.Date;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Asserts that every hot repository query is answered from an index declared on its document, by
+ * asking a real MongoDB for the winning plan. Sorted queries must also not sort in memory.
+ */
+@DataMongoTest
+@Testcontainers
+class RepositoryIndexTest {
+
+    @Container
+    @ServiceConnection
+    static MongoDBContainer mongo = new MongoDBContainer("mongo:7.0");
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private MongoMappingContext mappingContext;
+
+    @BeforeEach
+    void createDeclaredIndexes() {
+        IndexResolver resolver = IndexResolver.create(mappingContext);
+        for (Class<?> type : List.of(FileMetadataDocument.class, PaymentTransaction.class, ProfileDocument.class,
+                UserCredits.class, UploadSessionDocument.class)) {
+            IndexOperations indexOps = mongoTemplate.indexOps(type);
+            resolver.resolveIndexFor(type).forEach(indexOps::ensureIndex);
+        }
+    }
+
+    @Test
+    void fileMetadataFindByClerkIdUsesIndex() {
+        assertIndexed(plan(FileMetadataDocument.class, new Document("clerkId", "user"), null));
+    }
+
+    @Test
+    void fileMetadataCountByClerkIdUsesIndex() {
+        Document explain = mongoTemplate.getDb().runCommand(new Document("explain",
+                new Document("count", collection(FileMetadataDocument.class)).append("query", new Document("clerkId", "user")))
+                .append("verbosity", "queryPlanner"));
+        assertIndexed(explain.get("queryPlanner", Document.class).get("winningPlan", Document.class));
+    }
+
+    @Test
+    void fileMetadataFindByClerkIdAndSha256InUsesIndex() {
+        assertIndexed(plan(FileMetadataDocument.class,
+                new Document("clerkId", "user").append("sha256", new Document("$in", List.of("a", "b"))), null));
+    }
+
+    @Test
+    void filePageIsReadInIndexOrder() {
+        Document plan = plan(FileMetadataDocument.class, new Document("clerkId", "user"),
+                new Document("uploadedAt", -1).append("_id", -1));
+        assertIndexed(plan);
+        assertNoInMemorySort(plan);
+    }
+
+    @Test
+    void fileNamePrefixSearchUsesIndex() {
+        assertIndexed(plan(FileMetadataDocument.class,
+                new Document("clerkId", "user").append("nameLower", new Document("$gte", "re").append("$lt", "re" + Character.MAX_VALUE)),
+                new Document("nameLower", 1)));
+    }
+
+    @Test
+    void fileNameSubstringSearchUsesIndex() {
+        assertIndexed(plan(FileMetadataDocument.class,
+                new Document("clerkId", "user").append("nameGrams", new Document("$all", List.of("rep", "epo", "por"))), null));
+    }
+
+    @Test
+    void paymentFindByClerkIdUsesIndex() {
+        assertIndexed(plan(PaymentTransaction.class, new Document("clerkId", "user"), null));
+    }
+
+    @Test
+    void paymentFindByClerkIdOrderByTransactionDateDescUsesIndex() {
+        Document plan = plan(PaymentTransaction.class, new Document("clerkId", "user"), new Document("transactionDate", -1));
+        assertIndexed(plan);
+        assertNoInMemorySort(plan);
+    }
+
+    @Test
+    void paymentFindByClerkIdAndStatusOrderByTransactionDateDescUsesIndex() {
+        Document plan = plan(PaymentTransaction.class, new Document("clerkId", "user").append("status", "SUCCESS"),
+                new Document("transactionDate", -1));
+        assertIndexed(plan);
+        assertNoInMemorySort(plan);
+    }
+
+    @Test
+    void paymentFindByOrderIdUsesIndex() {
+        assertIndexed(plan(PaymentTransaction.class, new Document("orderId", "cs_test"), null));
+    }
+
+    @Test
+    void userCreditsFindByClerkIdUsesIndex() {
+        assertIndexed(plan(UserCredits.class, new Document("clerkId", "user"), null));
+    }
+
+    @Test
+    void profileFindByClerkIdUsesIndex() {
+        assertIndexed(plan(ProfileDocument.class, new Document("clerkId", "user"), null));
+    }
+
+    @Test
+    void profileFindByEmailUsesIndex() {
+        assertIndexed(plan(ProfileDocument.class, new Document("email", "user@example.com"), null));
+    }
+
+    @Test
+    void uploadSessionFindByExpiresAtBeforeUsesIndex() {
+        assertIndexed(plan(UploadSessionDocument.class, new Document("expiresAt", new Document("$lt", new Date())), null));
+    }
+
+    private Document plan(Class<?> type, Document filter, Document sort) {
+        FindIterable<Document> find = mongoTemplate.getCollection(collection(type)).find(filter);
+        if (sort != null) {
+            find = find.sort(sort);
+        }
+        Document explain = find.explain(ExplainVerbosity.QUERY_PLANNER);
+        return explain.get("queryPlanner", Document.class).get("winningPlan", Document.class);
+    }
+
+    private String collection(Class<?> type) {
+        return mongoTemplate.getCollectionName(type);
+    }
+
+    //a count on an index prefix plans as COUNT_SCAN, which reads only the index as well
+    private static void assertIndexed(Document winningPlan) {
+        assertThat(winningPlan.toJson())
+                .doesNotContain("\"COLLSCAN\"")
+                .containsAnyOf("\"IXSCAN\"", "\"COUNT_SCAN\"");
+    }
+
+    private static void assertNoInMemorySort(Document winningPlan) {
+        assertThat(winningPlan.toJson()).doesNotContain("\"SORT\"");
+    }
+}
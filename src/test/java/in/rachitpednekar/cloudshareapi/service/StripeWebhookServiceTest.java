@@ -0,0 +1,134 @@
+package in.rachitpednekar.cloudshareapi.service;
+
+import com.stripe.net.Webhook;
+import in.rachitpednekar.cloudshareapi.document.PaymentTransaction;
+import in.rachitpednekar.cloudshareapi.document.StripeEventDocument;
+import in.rachitpednekar.cloudshareapi.document.UserCredits;
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.ImportAutoConfiguration;
+import org.springframework.boot.autoconfigure.jackson.JacksonAutoConfiguration;
+import org.springframework.boot.test.autoconfigure.data.mongo.DataMongoTest;
+import org.springframework.boot.testcontainers.service.connection.ServiceConnection;
+import org.springframework.context.annotation.Import;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.test.context.bean.override.mockito.MockitoBean;
+import org.testcontainers.containers.MongoDBContainer;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+import java.time.LocalDateTime;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Runs the webhook queue and its consumer against a real MongoDB, to check that a checkout is
+ * credited once however often Stripe reports it.
+ */
+@DataMongoTest(properties = {
+        "stripe.webhook.secret=" + StripeWebhookServiceTest.SECRET,
+        "stripe.webhook.poll-interval=PT1H"})
+@Testcontainers
+@Import({StripeWebhookService.class, UserCreditService.class})
+@ImportAutoConfiguration(JacksonAutoConfiguration.class)
+class StripeWebhookServiceTest {
+
+    static final String SECRET = "whsec_test";
+    private static final String CLERK_ID = "user_1";
+    private static final String ORDER_ID = "cs_test_1";
+
+    @Container
+    @ServiceConnection
+    static MongoDBContainer mongo = new MongoDBContainer("mongo:7.0");
+
+    @MockitoBean
+    private ProfileService profileService;
+
+    @Autowired
+    private StripeWebhookService stripeWebhookService;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @BeforeEach
+    void setUp() {
+        mongoTemplate.remove(new Query(), StripeEventDocument.class);
+        mongoTemplate.remove(new Query(), PaymentTransaction.class);
+        mongoTemplate.remove(new Query(), UserCredits.class);
+        mongoTemplate.insert(PaymentTransaction.builder()
+                .clerkId(CLERK_ID)
+                .orderId(ORDER_ID)
+                .planId("premium")
+                .status("PENDING")
+                .transactionDate(LocalDateTime.now())
+                .build());
+        mongoTemplate.insert(UserCredits.builder().clerkId(CLERK_ID).credits(5).plan("BASIC").build());
+    }
+
+    @Test
+    void redeliveredEventIsQueuedOnce() throws Exception {
+        String payload = checkoutEvent("evt_1", "checkout.session.completed");
+
+        assertThat(stripeWebhookService.ingest(payload, sign(payload))).isTrue();
+        assertThat(stripeWebhookService.ingest(payload, sign(payload))).isFalse();
+        assertThat(mongoTemplate.count(new Query(), StripeEventDocument.class)).isEqualTo(1);
+    }
+
+    @Test
+    void duplicateEventsForOneCheckoutCreditOnce() throws Exception {
+        String completed = checkoutEvent("evt_1", "checkout.session.completed");
+        stripeWebhookService.ingest(completed, sign(completed));
+        stripeWebhookService.processPending();
+
+        //Stripe may report the same paid session again under another event
+        String succeeded = checkoutEvent("evt_2", "checkout.session.async_payment_succeeded");
+        stripeWebhookService.ingest(succeeded, sign(succeeded));
+        stripeWebhookService.processPending();
+
+        UserCredits credits = mongoTemplate.findOne(Query.query(Criteria.where("clerkId").is(CLERK_ID)), UserCredits.class);
+        assertThat(credits.getCredits()).isEqualTo(505);
+        assertThat(credits.getPlan()).isEqualTo("PREMIUM");
+        assertThat(credits.getAppliedOrderIds()).isNullOrEmpty();
+
+        PaymentTransaction transaction = mongoTemplate.findOne(Query.query(Criteria.where("orderId").is(ORDER_ID)), PaymentTransaction.class);
+        assertThat(transaction.getStatus()).isEqualTo("SUCCESS");
+        assertThat(transaction.getCreditsAdded()).isEqualTo(500);
+        assertThat(mongoTemplate.find(new Query(), StripeEventDocument.class))
+                .allSatisfy(event -> assertThat(event.getStatus()).isEqualTo("DONE"));
+    }
+
+    @Test
+    void orderCreditedBeforeACrashIsNotCreditedAgain() throws Exception {
+        //credits were added, then the consumer stopped before marking the transaction
+        mongoTemplate.getCollection("user_credits").updateOne(
+                new Document("clerkId", CLERK_ID),
+                new Document("$inc", new Document("credits", 500))
+                        .append("$push", new Document("appliedOrderIds", ORDER_ID)));
+
+        String completed = checkoutEvent("evt_1", "checkout.session.completed");
+        stripeWebhookService.ingest(completed, sign(completed));
+        stripeWebhookService.processPending();
+
+        UserCredits credits = mongoTemplate.findOne(Query.query(Criteria.where("clerkId").is(CLERK_ID)), UserCredits.class);
+        assertThat(credits.getCredits()).isEqualTo(505);
+        assertThat(credits.getAppliedOrderIds()).isNullOrEmpty();
+        PaymentTransaction transaction = mongoTemplate.findOne(Query.query(Criteria.where("orderId").is(ORDER_ID)), PaymentTransaction.class);
+        assertThat(transaction.getStatus()).isEqualTo("SUCCESS");
+    }
+
+    private static String checkoutEvent(String eventId, String type) {
+        return """
+                {"id": "%s", "object": "event", "type": "%s",
+                 "data": {"object": {"id": "%s", "object": "checkout.session", "payment_intent": "pi_1", "payment_status": "paid"}}}
+                """.formatted(eventId, type, ORDER_ID);
+    }
+
+    private static String sign(String payload) throws Exception {
+        long timestamp = Webhook.Util.getTimeNow();
+        return "t=" + timestamp + ",v1=" + Webhook.Util.computeHmacSha256(SECRET, timestamp + "." + payload);
+    }
+}